@@ -16,16 +16,29 @@
 
 package org.vaadin.johannesd.vquery;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.vaadin.johannesd.vquery.Filter.ByPredicate;
 
+import com.vaadin.data.Property.ValueChangeListener;
 import com.vaadin.server.Sizeable.Unit;
 import com.vaadin.ui.AbstractOrderedLayout;
 import com.vaadin.ui.Component;
@@ -34,6 +47,7 @@ import com.vaadin.ui.CssLayout;
 import com.vaadin.ui.Field;
 import com.vaadin.ui.HasComponents;
 import com.vaadin.ui.SingleComponentContainer;
+import com.vaadin.ui.UI;
 
 /**
  * Represents a set of Vaadin {@link Component components}.
@@ -71,7 +85,28 @@ import com.vaadin.ui.SingleComponentContainer;
 public abstract class AbstractQuery<C extends Component, This extends AbstractQuery<C, This>>
         implements Serializable, Iterable<C> {
 
-    private Set<C> cs;
+    /*
+     * Null if this query was deserialized from its plan and not yet resolved.
+     * See writeObject.
+     */
+    private transient Set<C> cs;
+
+    /*
+     * Set if this query is memoized; see QueryCache.
+     */
+    private transient QueryCache cache;
+    private transient Plan plan;
+    private transient long version;
+
+    /*
+     * The UI to resolve the plan against if this query is not yet resolved.
+     */
+    private transient UI origin;
+
+    /*
+     * Non-null if this is a weak query, in which case cs is null.
+     */
+    private transient List<WeakReference<C>> weak;
 
     /**
      * Constructs a query that represents the given components.
@@ -84,7 +119,7 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
      * Constructs a query that represents the components in {@code cs}.
      */
     public AbstractQuery(Collection<? extends C> cs) {
-        this.cs = Collections.unmodifiableSet(set(cs));
+        this.cs = Util.compact(cs);
     }
 
     /**
@@ -98,11 +133,20 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
      * Returns the union of {@code this} and {@code that}.
      */
     public <That extends AbstractQuery<? extends C, That>> This with(That that) {
-        Set<C> result = set(cs);
+        Set<C> result = set(cs());
         result.addAll(that.get());
         return createQuery(result);
     }
 
+    /**
+     * Returns the components added to and removed from {@code previous} to
+     * obtain this query, typically a newer result of the same query. The
+     * difference is computed in a single pass over each side.
+     */
+    public Delta<C> delta(AbstractQuery<? extends C, ?> previous) {
+        return Delta.compute(previous.cs(), cs());
+    }
+
     /*************
      * Filtering *
      *************/
@@ -126,79 +170,75 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
      * @param id
      *            The id. Cannot be null.
      */
-    public This id(final String id) {
-        return filter(new Predicate<C>() {
-            @Override
-            public boolean apply(C c) {
-                return id.equals(c.getId());
-            }
-        });
+    public This id(String id) {
+        return filter("id", id, Predicates.id(id));
     }
 
     /**
      * Returns the subset of components in this set that have the given
      * stylename.
      */
-    public This hasStyleName(final String styleName) {
-        return filter(new ByPredicate<C>(new Predicate<C>() {
-            @Override
-            public boolean apply(C c) {
-                return Arrays.asList(c.getStyleName().split("\\s+")).contains(
-                        styleName);
-            }
-        }));
+    public This hasStyleName(String styleName) {
+        return filter("hasStyleName", styleName,
+                Predicates.hasStyleName(styleName));
     }
 
     /**
      * Returns the subset of components in this set that have the given primary
      * stylename.
      */
-    public This hasPrimaryStyleName(final String styleName) {
-        return filter(new ByPredicate<C>(new Predicate<C>() {
-            @Override
-            public boolean apply(C c) {
-                return c.getPrimaryStyleName().equals(styleName);
-            }
-        }));
+    public This hasPrimaryStyleName(String styleName) {
+        return filter("hasPrimaryStyleName", styleName,
+                Predicates.hasPrimaryStyleName(styleName));
     }
 
     /**
      * Returns the subset of components in this set for which
      * {@code isVisible() == visible}.
      */
-    public This isVisible(final boolean visible) {
-        return filter(new Predicate<C>() {
-            @Override
-            public boolean apply(C c) {
-                return c.isVisible() == visible;
-            }
-        });
+    public This isVisible(boolean visible) {
+        return filter("isVisible", visible, Predicates.isVisible(visible));
     }
 
     /**
      * Returns the subset of components in this set for which
      * {@code isEnabled() == enabled}.
      */
-    public This isEnabled(final boolean enabled) {
-        return filter(new Predicate<C>() {
-            @Override
-            public boolean apply(Component c) {
-                return c.isEnabled() == enabled;
-            }
-        });
+    public This isEnabled(boolean enabled) {
+        return filter("isEnabled", enabled, Predicates.isEnabled(enabled));
+    }
+
+    /**
+     * Returns the subset of components in this set that are effectively
+     * visible if {@code visible} is true, or effectively invisible otherwise.
+     * A component is effectively visible if it and all its ancestors are
+     * visible. Ancestors shared by several components are evaluated only
+     * once.
+     */
+    public This isEffectivelyVisible(boolean visible) {
+        return inherited("isEffectivelyVisible", visible,
+                Predicates.isVisible(true));
+    }
+
+    /**
+     * Returns the subset of components in this set that are effectively
+     * enabled if {@code enabled} is true, or effectively disabled otherwise.
+     * A component is effectively enabled if it and all its ancestors are
+     * enabled.
+     *
+     * @see #isEffectivelyVisible(boolean)
+     */
+    public This isEffectivelyEnabled(boolean enabled) {
+        return inherited("isEffectivelyEnabled", enabled,
+                Predicates.isEnabled(true));
     }
 
     /**
      * Returns the subset of components in this set for which
      * {@code isReadOnly() == readOnly}.
      */
-    public This isReadOnly(final boolean readOnly) {
-        return filter(new Predicate<C>() {
-            @Override
-            public boolean apply(C c) {
-                return c.isReadOnly() == readOnly;
-            }
-        });
+    public This isReadOnly(boolean readOnly) {
+        return filter("isReadOnly", readOnly, Predicates.isReadOnly(readOnly));
     }
 
     /**
@@ -209,27 +249,16 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
      * Note that layouts and other component containers that do not have any
      * children are considered leaf nodes.
      */
-    public This isLeaf(final boolean leaf) {
-        return filter(new Predicate<C>() {
-            @Override
-            public boolean apply(C c) {
-                return (c instanceof HasComponents && ((HasComponents) c)
-                        .iterator().hasNext()) != leaf;
-            }
-        });
+    public This isLeaf(boolean leaf) {
+        return filter("isLeaf", leaf, Predicates.isLeaf(leaf));
     }
 
     /**
      * Returns the subset of components in this set for which
      * {@code isAttached() == attached}.
      */
-    public This isAttached(final boolean attached) {
-        return filter(new Predicate<C>() {
-            @Override
-            public boolean apply(C c) {
-                return c.isAttached() == attached;
-            }
-        });
+    public This isAttached(boolean attached) {
+        return filter("isAttached", attached, Predicates.isAttached(attached));
     }
 
     /**
@@ -237,13 +266,36 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
      * an empty query.
      */
     public <D extends Component> Query<D> is(D c) {
-        if (cs.contains(c)) {
+        if (cs().contains(c)) {
             return new Query<D>(c);
         } else {
             return new Query<D>();
         }
     }
 
+    /**
+     * Returns the subset of components in this set that have a descendant
+     * satisfying {@code p}. All the candidates are evaluated in a single
+     * post-order pass, visiting each descendant at most once even if the
+     * candidates are nested.
+     */
+    public This has(Predicate<? super Component> p) {
+        return createQuery(new Map.Has<C>(p).apply(cs()));
+    }
+
+    /**
+     * Returns the subset of components in this set that have a descendant that
+     * is an instance of {@code klass}.
+     *
+     * @see #has(Predicate)
+     */
+    public This has(Class<?> klass) {
+        Plan next = next("has", klass);
+        return memoized(
+                createQuery(apply(next,
+                        new Map.Has<C>(Predicates.is(klass)))), next);
+    }
+
     /**
      * Returns the subset of components in this set that are instances of the
      * given subtype of {@link C}.
@@ -254,14 +306,19 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
      * 
      * @return a Query with the given component type.
      */
-    public <D extends C> Query<D> is(Class<D> klass) {
-        Set<D> result = set();
-        for (C c : this) {
-            if (klass.isAssignableFrom(c.getClass())) {
-                result.add(klass.cast((c)));
+    public <D extends C> Query<D> is(final Class<D> klass) {
+        return map("is", klass, new Map<C, D>() {
+            @Override
+            public Set<D> apply(Set<? extends C> cs) {
+                Set<D> result = set();
+                for (C c : cs) {
+                    if (klass.isAssignableFrom(c.getClass())) {
+                        result.add(klass.cast((c)));
+                    }
+                }
+                return result;
             }
-        }
-        return new Query<D>(result);
+        });
     }
 
     /**
@@ -269,13 +326,7 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
      * given interface in addition to {@code C}.
      */
     public This isAlso(Class<?> klass) {
-        Set<C> result = set();
-        for (C c : this) {
-            if (klass.isAssignableFrom(c.getClass())) {
-                result.add(c);
-            }
-        }
-        return createQuery(result);
+        return filter("isAlso", klass, Predicates.is(klass));
     }
 
     /**
@@ -283,30 +334,43 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
      * this set that are fields.
      */
     public FieldQuery<Field<?>> isField() {
-        Set<Field<?>> result = set();
-        for (C c : this) {
-            if (c instanceof Field<?>) {
-                result.add((Field<?>) c);
-            }
-        }
-        return new FieldQuery<Field<?>>(result);
+        Plan next = next("isField", null);
+        return memoized(new FieldQuery<Field<?>>(apply(next,
+                new Map<C, Field<?>>() {
+                    @Override
+                    public Set<Field<?>> apply(Set<? extends C> cs) {
+                        Set<Field<?>> result = set();
+                        for (C c : cs) {
+                            if (c instanceof Field<?>) {
+                                result.add((Field<?>) c);
+                            }
+                        }
+                        return result;
+                    }
+                })), next);
     }
 
     /**
      * Returns a FieldQuery representing the subset of components in this set
      * that are fields of the given type.
      */
-    public <F extends Field<?>> FieldQuery<F> isField(Class<F> fieldType) {
-        Set<F> result = set();
-        for (C c : this) {
-            if (c instanceof Field<?>
-                    && fieldType.isAssignableFrom(c.getClass())) {
-                @SuppressWarnings("unchecked")
-                F f = (F) c;
-                result.add(f);
+    public <F extends Field<?>> FieldQuery<F> isField(final Class<F> fieldType) {
+        Plan next = next("isField", fieldType);
+        return memoized(new FieldQuery<F>(apply(next, new Map<C, F>() {
+            @Override
+            public Set<F> apply(Set<? extends C> cs) {
+                Set<F> result = set();
+                for (C c : cs) {
+                    if (c instanceof Field<?>
+                            && fieldType.isAssignableFrom(c.getClass())) {
+                        @SuppressWarnings("unchecked")
+                        F f = (F) c;
+                        result.add(f);
+                    }
+                }
+                return result;
             }
-        }
-        return new FieldQuery<F>(result);
+        })), next);
     }
 
     /**************************
@@ -317,40 +381,28 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
      * Adds the given stylename to all the components in this set.
      */
     public This addStyleName(String sn) {
-        for (C c : this) {
-            c.addStyleName(sn);
-        }
-        return createQuery();
+        return mutate("addStyleName", sn);
     }
 
     /**
      * Removes the given stylename from all the components in this set.
      */
     public This removeStyleName(String sn) {
-        for (C c : this) {
-            c.removeStyleName(sn);
-        }
-        return createQuery();
+        return mutate("removeStyleName", sn);
     }
 
     /**
      * Sets the stylename of all the components in this query.
      */
     public This setStyleName(String sn) {
-        for (C c : this) {
-            c.setStyleName(sn);
-        }
-        return createQuery();
+        return mutate("setStyleName", sn);
     }
 
     /**
      * Sets the primary stylename of all the components in this query.
      */
     public This setPrimaryStyleName(String sn) {
-        for (C c : this) {
-            c.setPrimaryStyleName(sn);
-        }
-        return createQuery();
+        return mutate("primaryStyleName", sn);
     }
 
     /**
@@ -358,10 +410,7 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
      * {@code visible.}
      */
     public This setVisible(boolean visible) {
-        for (C c : this) {
-            c.setVisible(visible);
-        }
-        return createQuery();
+        return mutate("visible", visible);
     }
 
     /**
@@ -369,10 +418,7 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
      * {@code enabled.}
      */
     public This setEnabled(boolean enabled) {
-        for (C c : this) {
-            c.setEnabled(enabled);
-        }
-        return createQuery();
+        return mutate("enabled", enabled);
     }
 
     /**
@@ -380,10 +426,7 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
      * {@code readOnly.}
      */
     public This setReadOnly(boolean readOnly) {
-        for (C c : this) {
-            c.setReadOnly(readOnly);
-        }
-        return createQuery();
+        return mutate("readOnly", readOnly);
     }
 
     /**
@@ -452,12 +495,32 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
      * @see Component#setHeight(float, Unit)
      */
     public This setHeight(float height, Unit unit) {
-        for (C c : cs) {
+        for (C c : cs()) {
             c.setHeight(height, unit);
         }
         return createQuery();
     }
 
+    /**
+     * Adds {@code listener} to every field within the components in this set
+     * that is an instance of {@code type} and satisfies {@code predicate},
+     * including fields attached within them later. The listener is removed
+     * from fields when they are detached.
+     *
+     * @param predicate
+     *            The predicate, or null to select all instances of
+     *            {@code type}.
+     * @return the delegation, to be {@link DelegatedListener#remove() removed}
+     *         when no longer needed.
+     * @throws IllegalStateException
+     *             if a component in this set is not attached to a UI.
+     */
+    public <F extends Field<?>> DelegatedListener<F> delegateValueChangeListener(
+            Class<F> type, Predicate<? super F> predicate,
+            ValueChangeListener listener) {
+        return new DelegatedListener<F>(cs(), type, predicate, listener);
+    }
+
     /***********************
      * Hierarchy traversal *
      ***********************/
@@ -469,7 +532,27 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
      * is d or a descendant of d.
      */
     public Query<Component> descendants() {
-        return new Query<Component>(Map.descendants.apply(get()));
+        return map("descendants", null, Map.descendants);
+    }
+
+    /**
+     * Returns the set of the descendants of the components in this set that
+     * satisfy {@code p}, pruning the traversal at components that do not. The
+     * subtree of a component for which {@code p} is false is not visited, and
+     * none of its components are included.
+     */
+    public Query<Component> descendantsWhere(Predicate<? super Component> p) {
+        return new Query<Component>(new Map.DescendantsWhere(p).apply(cs()));
+    }
+
+    /**
+     * Returns the set of the visible descendants of the components in this
+     * set, skipping the subtrees of invisible components. Equivalent to
+     * {@code descendantsWhere(Predicates.isVisible(true))}.
+     */
+    public Query<Component> visibleDescendants() {
+        return map("visibleDescendants", null, new Map.DescendantsWhere(
+                Predicates.isVisible(true)));
     }
 
     public Query<Component> descendants(int depth) {
@@ -478,16 +561,19 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
 
     /**
      * Returns the set of all the children of all the components in this set.
+     * The children are in {@link DocumentOrder document order} if it is
+     * enabled for the UI; otherwise, they are grouped by parent in the order
+     * of this set.
      */
     public Query<Component> children() {
-        return new Query<Component>(Map.children.apply(get()));
+        return DocumentOrder.ordered(map("children", null, Map.children));
     }
 
     /**
      * Returns the set of the parents of the components in this set.
      */
     public Query<HasComponents> parent() {
-        return new Query<HasComponents>(Map.parent.apply(get()));
+        return DocumentOrder.ordered(map("parent", null, Map.parent));
     }
 
     /**
@@ -497,7 +583,96 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
      * ancestor of the parent.
      */
     public Query<HasComponents> ancestors() {
-        return new Query<HasComponents>(Map.ancestors.apply(get()));
+        return DocumentOrder.ordered(map("ancestors", null, Map.ancestors));
+    }
+
+    /**
+     * Returns the set of the siblings of the components in this set, that is,
+     * the other children of their parents. A component in this set is
+     * included if it is a sibling of another component in this set.
+     * <p>
+     * The sibling methods group the components by parent and iterate the
+     * children of each parent once. The results are grouped by parent in the
+     * order of this set, and ordered as in the parent within each group.
+     */
+    public Query<Component> siblings() {
+        return map("siblings", null,
+                new Map.Siblings(Map.Siblings.Axis.SIBLINGS));
+    }
+
+    /**
+     * Returns the set of the siblings immediately following the components in
+     * this set.
+     *
+     * @see #siblings()
+     */
+    public Query<Component> next() {
+        return map("next", null, new Map.Siblings(Map.Siblings.Axis.NEXT));
+    }
+
+    /**
+     * Returns the set of the siblings immediately preceding the components in
+     * this set.
+     *
+     * @see #siblings()
+     */
+    public Query<Component> prev() {
+        return map("prev", null, new Map.Siblings(Map.Siblings.Axis.PREV));
+    }
+
+    /**
+     * Returns the set of all the siblings following the components in this
+     * set.
+     *
+     * @see #siblings()
+     */
+    public Query<Component> nextAll() {
+        return map("nextAll", null,
+                new Map.Siblings(Map.Siblings.Axis.NEXT_ALL));
+    }
+
+    /**
+     * Returns the set of all the siblings preceding the components in this
+     * set.
+     *
+     * @see #siblings()
+     */
+    public Query<Component> prevAll() {
+        return map("prevAll", null,
+                new Map.Siblings(Map.Siblings.Axis.PREV_ALL));
+    }
+
+    /**
+     * Returns the set of the nearest ancestors of the components in this set
+     * that are instances of {@code klass}. Unlike
+     * {@code ancestors().is(klass)}, climbing stops at the first match, and
+     * ancestors shared by several components are visited only once.
+     */
+    public <D extends Component> Query<D> closest(Class<D> klass) {
+        return map("closest", klass,
+                new Map.Closest<D>(Predicates.is(klass), klass));
+    }
+
+    /**
+     * Returns the set of the nearest ancestors of the components in this set
+     * that satisfy {@code p}.
+     *
+     * @see #closest(Class)
+     */
+    public Query<HasComponents> closest(Predicate<? super HasComponents> p) {
+        return new Query<HasComponents>(new Map.Closest<HasComponents>(p,
+                HasComponents.class).apply(cs()));
+    }
+
+    /**
+     * Returns a query with the components in this set sorted in document
+     * order, that is, in the order a pre-order traversal of the hierarchy
+     * visits them. Uses the {@link DocumentOrder} snapshot of the UI if
+     * enabled, and compares the paths of the components from their roots
+     * otherwise.
+     */
+    public This sortByDocumentOrder() {
+        return createQuery(DocumentOrder.sortAny(cs()));
     }
 
     public Query<HasComponents> ancestor(int depth) {
@@ -519,7 +694,7 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
      * their original parents if any.
      */
     public This addTo(ComponentContainer cc) {
-        cc.addComponents(cs.toArray(new Component[size()]));
+        cc.addComponents(cs().toArray(new Component[size()]));
         return createQuery();
     }
 
@@ -603,14 +778,92 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
      */
     @Override
     public Iterator<C> iterator() {
-        return cs.iterator();
+        return cs().iterator();
+    }
+
+    /**
+     * Returns a spliterator over the components in this set in original
+     * insertion order.
+     */
+    @Override
+    public Spliterator<C> spliterator() {
+        return Spliterators.spliterator(cs(), Spliterator.ORDERED
+                | Spliterator.DISTINCT | Spliterator.NONNULL
+                | Spliterator.IMMUTABLE);
+    }
+
+    /**
+     * Returns a sequential stream of the components in this set in original
+     * insertion order.
+     */
+    public Stream<C> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Returns a possibly parallel stream of the components in this set.
+     */
+    public Stream<C> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    /**
+     * Returns a sequential stream of the descendants of the components in this
+     * set, in the same order as {@link #descendants()}. The descendants are
+     * visited lazily instead of being collected into a set first.
+     * <p>
+     * The hierarchy must not be modified while the stream is being consumed.
+     */
+    public Stream<Component> descendantStream() {
+        return StreamSupport.stream(new SubtreeSpliterator(cs()), false);
+    }
+
+    /**
+     * Returns a possibly parallel stream of the descendants of the components
+     * in this set. The stream is split by subtree, so independent branches of
+     * the hierarchy may be traversed concurrently.
+     * <p>
+     * The hierarchy must not be modified while the stream is being consumed,
+     * so the session lock should be held for the duration of the terminal
+     * operation.
+     */
+    public Stream<Component> parallelDescendantStream() {
+        return StreamSupport.stream(new SubtreeSpliterator(cs()), true);
+    }
+
+    /**
+     * Returns a query of the same type representing the same components as
+     * this one, but only holding weak references to them. Components that are
+     * no longer referenced elsewhere, for instance because they have been
+     * removed from the UI, may be garbage collected and silently drop out of
+     * the returned query.
+     * <p>
+     * A weak query is intended to be stored in a long-lived field. Since the
+     * set of live components is recomputed on every access, operations on a
+     * weak query take time proportional to the number of components it was
+     * created with. The queries derived from a weak query are not weak.
+     */
+    public This weak() {
+        This q = createQuery(cs());
+        ((AbstractQuery<C, This>) q).makeWeak();
+        return q;
+    }
+
+    /**
+     * Returns whether this query only holds weak references to its
+     * components.
+     * 
+     * @see #weak()
+     */
+    public boolean isWeak() {
+        return weak != null;
     }
 
     /**
      * Returns a {@link Set} containing all the components in this set.
      */
     public Set<C> get() {
-        return set(cs);
+        return set(cs());
     }
 
     /**
@@ -624,7 +877,7 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
         if (index < 0 || index > size()) {
             throw new IndexOutOfBoundsException();
         }
-        Iterator<C> i = cs.iterator();
+        Iterator<C> i = cs().iterator();
         while (index > 0) {
             index--;
             i.next();
@@ -646,7 +899,7 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
             throw new IndexOutOfBoundsException();
         }
         Set<C> result = set();
-        Iterator<C> i = cs.iterator();
+        Iterator<C> i = cs().iterator();
         to -= from;
         while (from > 0) {
             from--;
@@ -685,11 +938,11 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
      * Otherwise, throws.
      */
     public C one() {
-        if (cs.size() != 1) {
+        if (cs().size() != 1) {
             throw new RuntimeException(
                     "Set does not contain exactly one element");
         }
-        return cs.iterator().next();
+        return cs().iterator().next();
     }
 
     /**
@@ -698,20 +951,206 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
      * @return
      */
     public boolean exists() {
-        return !cs.isEmpty();
+        return !cs().isEmpty();
     }
 
     /**
      * Returns the number of components in this set.
      */
     public int size() {
-        return cs.size();
+        return cs().size();
+    }
+
+    /************
+     * Grouping *
+     ************/
+
+    /**
+     * Returns the components in this set grouped by the keys returned by
+     * {@code key}, in the order of the first component of each group. The
+     * groups are computed in a single pass.
+     */
+    public <K> java.util.Map<K, This> groupBy(Function<? super C, K> key) {
+        java.util.Map<K, Set<C>> groups = new LinkedHashMap<K, Set<C>>();
+        for (C c : cs()) {
+            K k = key.apply(c);
+            Set<C> group = groups.get(k);
+            if (group == null) {
+                group = set();
+                groups.put(k, group);
+            }
+            group.add(c);
+        }
+        java.util.Map<K, This> result = new LinkedHashMap<K, This>(
+                groups.size() * 4 / 3 + 1);
+        for (java.util.Map.Entry<K, Set<C>> e : groups.entrySet()) {
+            result.put(e.getKey(), createQuery(Util.freeze(e.getValue())));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the components in this set that satisfy {@code p}, mapped to
+     * true, and those that do not, mapped to false. Both keys are always
+     * present. The partition is computed in a single pass.
+     */
+    public java.util.Map<Boolean, This> partition(Predicate<? super C> p) {
+        int capacity = size() * 4 / 3 + 1;
+        Set<C> matching = new LinkedHashSet<C>(capacity);
+        Set<C> rest = new LinkedHashSet<C>(capacity);
+        for (C c : cs()) {
+            (p.apply(c) ? matching : rest).add(c);
+        }
+        java.util.Map<Boolean, This> result = new LinkedHashMap<Boolean, This>(
+                4);
+        result.put(true, createQuery(Util.freeze(matching)));
+        result.put(false, createQuery(Util.freeze(rest)));
+        return result;
+    }
+
+    /**
+     * Returns the number of components in this set per key returned by
+     * {@code key}, in the order of the first component with each key.
+     */
+    public <K> java.util.Map<K, Integer> countBy(Function<? super C, K> key) {
+        java.util.Map<K, int[]> counts = new LinkedHashMap<K, int[]>();
+        for (C c : cs()) {
+            K k = key.apply(c);
+            int[] count = counts.get(k);
+            if (count == null) {
+                count = new int[1];
+                counts.put(k, count);
+            }
+            count[0]++;
+        }
+        java.util.Map<K, Integer> result = new LinkedHashMap<K, Integer>(
+                counts.size() * 4 / 3 + 1);
+        for (java.util.Map.Entry<K, int[]> e : counts.entrySet()) {
+            result.put(e.getKey(), e.getValue()[0]);
+        }
+        return result;
     }
 
     /*
      * Helpers
      */
 
+    /**
+     * Returns the components in this set, first resolving the plan of this
+     * query if it was deserialized from one.
+     */
+    private Set<C> cs() {
+        if (weak != null) {
+            return liveComponents();
+        }
+        if (cs == null) {
+            @SuppressWarnings("unchecked")
+            AbstractQuery<C, ?> q = (AbstractQuery<C, ?>) plan.execute(origin);
+            cs = q.cs();
+            cache = q.cache;
+            version = q.version;
+            origin = null;
+            if (cache == null) {
+                // Resolved without memoization; the plan is no longer valid
+                plan = null;
+            }
+        }
+        return cs;
+    }
+
+    /**
+     * Replaces the components of this query with weak references.
+     */
+    private void makeWeak() {
+        Set<C> strong = cs();
+        weak = new ArrayList<WeakReference<C>>(strong.size());
+        for (C c : strong) {
+            weak.add(new WeakReference<C>(c));
+        }
+        cs = null;
+        cache = null;
+        plan = null;
+    }
+
+    /**
+     * Returns the components of this weak query that have not been garbage
+     * collected, pruning the cleared references.
+     */
+    private Set<C> liveComponents() {
+        Set<C> result = new LinkedHashSet<C>(Math.max(16,
+                (int) (weak.size() / 0.75f) + 1));
+        boolean cleared = false;
+        for (WeakReference<C> ref : weak) {
+            C c = ref.get();
+            if (c != null) {
+                result.add(c);
+            } else {
+                cleared = true;
+            }
+        }
+        if (cleared) {
+            List<WeakReference<C>> pruned = new ArrayList<WeakReference<C>>(
+                    result.size());
+            for (WeakReference<C> ref : weak) {
+                if (ref.get() != null) {
+                    pruned.add(ref);
+                }
+            }
+            weak = pruned;
+        }
+        return Util.freeze(result);
+    }
+
+    /**
+     * Writes this query in a compact form. A memoized query that is up to date
+     * is written as its plan and its UI, to be lazily resolved again when
+     * first accessed after deserialization. Otherwise the components are
+     * written as a plain sequence of references.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeBoolean(weak != null);
+        Set<C> cs = cs();
+        UI ui = null;
+        if (plan != null && cache != null && cache.validate() == version
+                && !cs.isEmpty()) {
+            ui = cs.iterator().next().getUI();
+        }
+        if (ui != null) {
+            out.writeBoolean(true);
+            out.writeObject(plan);
+            out.writeObject(ui);
+        } else {
+            out.writeBoolean(false);
+            out.writeInt(cs.size());
+            for (C c : cs) {
+                out.writeObject(c);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        boolean isWeak = in.readBoolean();
+        if (in.readBoolean()) {
+            plan = (Plan) in.readObject();
+            origin = (UI) in.readObject();
+        } else {
+            int size = in.readInt();
+            Set<C> result = new LinkedHashSet<C>(Math.max(16,
+                    (int) (size / 0.75f) + 1));
+            for (int i = 0; i < size; i++) {
+                result.add((C) in.readObject());
+            }
+            cs = Util.freeze(result);
+        }
+        if (isWeak) {
+            makeWeak();
+        }
+    }
+
     /**
      * Returns whether this set is equal to {@code that}. An
      * {@code AbstractQuery} instance is equal to another object if and only if
@@ -721,12 +1160,12 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
     @Override
     public boolean equals(Object that) {
         return getClass() == that.getClass()
-                && cs.equals(((AbstractQuery<?, ?>) that).cs);
+                && cs().equals(((AbstractQuery<?, ?>) that).cs());
     }
 
     @Override
     public String toString() {
-        return getClass().getSimpleName() + cs;
+        return getClass().getSimpleName() + cs();
     }
 
     /**
@@ -736,7 +1175,33 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
     abstract protected <D extends C> This createQuery(Set<D> cs);
 
     protected This createQuery() {
-        return createQuery(get());
+        return createQuery(cs());
+    }
+
+    /**
+     * Sets {@code property} of every component in this set to {@code value},
+     * or records the change if a {@link MutationBatch} is enabled for the UI of
+     * the component. Changes that would not alter the state of a component
+     * are skipped; for the rest, the {@link HierarchyTracker} of the UI is
+     * notified.
+     */
+    protected This mutate(String property, Object value) {
+        UI ui = null;
+        HierarchyTracker tracker = null;
+        for (C c : this) {
+            UI cui = c.getUI();
+            if (cui != ui) {
+                ui = cui;
+                tracker = ui != null ? HierarchyTracker.find(ui) : null;
+            }
+            if (tracker != null && tracker.batch != null) {
+                tracker.batch.record(c, property, value);
+            } else if (MutationBatch.apply(c, property, value)
+                    && tracker != null) {
+                tracker.changed(c);
+            }
+        }
+        return createQuery();
     }
 
     /**
@@ -744,7 +1209,7 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
      * applied to this set.
      */
     protected <D extends Component> AbstractQuery<D, ?> map(Map<C, D> m) {
-        return new Query<D>(m.apply(cs));
+        return new Query<D>(m.apply(cs()));
     }
 
     /**
@@ -752,7 +1217,110 @@ public abstract class AbstractQuery<C extends Component, This extends AbstractQu
      * when applied to this set.
      */
     protected This filter(Filter<C> f) {
-        return createQuery(f.apply(cs));
+        return createQuery(f.apply(cs()));
+    }
+
+    /**
+     * Marks this query as memoized in {@code cache} with the given plan.
+     */
+    @SuppressWarnings("unchecked")
+    This memoize(QueryCache cache, Plan plan, long version) {
+        this.cache = cache;
+        this.plan = plan;
+        this.version = version;
+        return (This) this;
+    }
+
+    /**
+     * Returns a query of {@code cs}, a reordering of this set, memoized with
+     * the plan of this query if this query is memoized.
+     */
+    This reordered(Set<? extends C> cs) {
+        This q = createQuery(cs);
+        return cache != null ? q.memoize(cache, plan, version) : q;
+    }
+
+    /**
+     * Returns the plan of this query followed by the given step, or null if
+     * this query is not memoized or the hierarchy has changed since it was
+     * created.
+     */
+    private Plan next(String step, Object arg) {
+        if (cache != null && cache.validate() == version) {
+            return plan.then(step, arg);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the result of applying {@code m} to this set. If {@code next} is
+     * not null, the result is looked up from, or stored to, the query cache.
+     */
+    private <D> Set<D> apply(Plan next, Map<? super C, D> m) {
+        if (next == null) {
+            return m.apply(cs());
+        }
+        Set<D> result = cache.get(next);
+        if (result == null) {
+            result = cache.put(next, m.apply(cs()));
+        }
+        return result;
+    }
+
+    /**
+     * Marks {@code q} as memoized with the plan {@code next}, unless it is
+     * null.
+     */
+    private <Q extends AbstractQuery<?, ?>> Q memoized(Q q, Plan next) {
+        if (next != null) {
+            q.memoize(cache, next, version);
+        }
+        return q;
+    }
+
+    /**
+     * Like {@link #filter(Predicate)}, but memoizes the result if this query
+     * is memoized. The step name and argument must uniquely identify the
+     * predicate.
+     */
+    private This filter(String step, Object arg, final Predicate<? super C> p) {
+        Plan next = next(step, arg);
+        return memoized(createQuery(apply(next, new Map<C, C>() {
+            @Override
+            public Set<C> apply(Set<? extends C> cs) {
+                Set<C> result = set();
+                for (C c : cs) {
+                    if (p.apply(c)) {
+                        result.add(c);
+                    }
+                }
+                return result;
+            }
+        })), next);
+    }
+
+    /**
+     * Returns the subset of components whose state inherited through
+     * {@code p} equals {@code expected}, memoizing the result if this query is
+     * memoized.
+     */
+    private This inherited(String step, boolean expected,
+            Predicate<? super Component> p) {
+        Plan next = next(step, expected);
+        return memoized(
+                createQuery(apply(next, new Map.Inherited<C>(p, expected))),
+                next);
+    }
+
+    /**
+     * Like {@link #map(Map)}, but memoizes the result if this query is
+     * memoized. The step name and argument must uniquely identify the map.
+     */
+    private <D extends Component> Query<D> map(String step, Object arg,
+            Map<? super C, D> m) {
+        Plan next = next(step, arg);
+        return memoized(new Query<D>(apply(next, m)), next);
     }
 
     /**
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import com.vaadin.ui.Component;
+import com.vaadin.ui.HasComponents.ComponentAttachDetachNotifier;
+import com.vaadin.ui.HasComponents.ComponentAttachEvent;
+import com.vaadin.ui.HasComponents.ComponentAttachListener;
+import com.vaadin.ui.HasComponents.ComponentDetachEvent;
+import com.vaadin.ui.HasComponents.ComponentDetachListener;
+import com.vaadin.ui.UI;
+
+/**
+ * Evaluates {@link VQuery#all()} for a UI in the background without holding
+ * the session lock for the whole traversal.
+ * <p>
+ * The hierarchy is traversed in chunks of a bounded number of components. Each
+ * chunk is run with {@link UI#accessSynchronously(Runnable)}, and the lock is
+ * released between chunks so that requests to the UI are not stalled. If a
+ * container already visited is changed between two chunks, or the
+ * {@link HierarchyTracker} of a tracked UI is {@link HierarchyTracker#touch()
+ * touched}, the traversal is restarted; after {@link #MAX_RESTARTS} restarts,
+ * the result is completed exceptionally with a
+ * {@link ConcurrentModificationException}. Changes to the style names,
+ * visibility or enabled state of components do not restart the traversal.
+ * <p>
+ * No tracker is installed to the UI. Instead, the traversal listens to the
+ * containers as it visits them, so that the registration is spread over the
+ * chunks, and removes the listeners once it is finished.
+ * <p>
+ * An optional filter is evaluated while holding the lock, and should be used
+ * to select components by state that may not be read without it.
+ *
+ * @see VQuery#async(UI)
+ *
+ * @author Johannes Dahlström
+ */
+public class AsyncQuery {
+
+    /**
+     * The default maximum number of components visited per chunk.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    /**
+     * The number of times a traversal is restarted due to concurrent changes
+     * before giving up.
+     */
+    public static final int MAX_RESTARTS = 3;
+
+    private final UI ui;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private Executor executor;
+    private Predicate<? super Component> filter;
+
+    /**
+     * Constructs an asynchronous query for all the components in {@code ui}.
+     */
+    public AsyncQuery(UI ui) {
+        this.ui = ui;
+    }
+
+    /**
+     * Sets the maximum number of components visited while holding the lock.
+     */
+    public AsyncQuery withChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Sets the executor that drives the traversal. By default, a shared pool
+     * with one thread per processor is used.
+     */
+    public AsyncQuery withExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Includes only the components satisfying {@code filter} in the result.
+     */
+    public AsyncQuery withFilter(Predicate<? super Component> filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * Starts the traversal, returning a future completed with the result.
+     * Cancelling the future stops the traversal before its next chunk.
+     */
+    public CompletableFuture<Query<Component>> execute() {
+        final CompletableFuture<Query<Component>> result = new CompletableFuture<Query<Component>>();
+        (executor != null ? executor : Util.executor()).execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Query<Component> q = traverse(result);
+                    if (q != null) {
+                        result.complete(q);
+                    }
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                } catch (Error e) {
+                    result.completeExceptionally(e);
+                    throw e;
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Runs chunks until the traversal is complete, returning null if
+     * {@code future} is cancelled.
+     */
+    private Query<Component> traverse(CompletableFuture<?> future) {
+        for (int restarts = 0;; restarts++) {
+            Traversal t = new Traversal();
+            while (!t.done && !t.stale) {
+                if (future.isDone()) {
+                    // Release the containers visited so far
+                    if (t.components != null) {
+                        ui.accessSynchronously(t.changes);
+                    }
+                    return null;
+                }
+                ui.accessSynchronously(t);
+            }
+            if (t.done) {
+                return new Query<Component>(Util.freeze(t.result));
+            }
+            if (restarts == MAX_RESTARTS) {
+                throw new ConcurrentModificationException(
+                        "The hierarchy kept changing during traversal");
+            }
+        }
+    }
+
+    /**
+     * The state of a single traversal; each run visits one chunk.
+     */
+    private class Traversal implements Runnable, Consumer<Component> {
+
+        final Set<Component> result = Util.set();
+        final ChangeListener changes = new ChangeListener();
+        SubtreeSpliterator components;
+        HierarchyTracker tracker;
+        long version;
+        boolean done;
+        boolean stale;
+
+        @Override
+        public void run() {
+            if (components == null) {
+                components = new SubtreeSpliterator(
+                        Collections.<Component> singleton(ui));
+                changes.listen(ui);
+                tracker = HierarchyTracker.find(ui);
+                version = tracker != null ? tracker.getStructureVersion() : 0;
+            } else if (changes.changed
+                    || (tracker != null && version != tracker
+                            .getStructureVersion())) {
+                changes.run();
+                stale = true;
+                return;
+            }
+            try {
+                for (int i = 0; i < chunkSize; i++) {
+                    if (!components.tryAdvance(this)) {
+                        add(ui);
+                        done = true;
+                        changes.run();
+                        return;
+                    }
+                }
+            } catch (RuntimeException e) {
+                changes.run();
+                throw e;
+            }
+        }
+
+        @Override
+        public void accept(Component c) {
+            // The children of c have just been read
+            changes.listen(c);
+            add(c);
+        }
+
+        private void add(Component c) {
+            if (filter == null || filter.apply(c)) {
+                result.add(c);
+            }
+        }
+    }
+
+    /**
+     * Listens to the containers visited by a traversal and records whether
+     * any of them has been changed. Running the listener removes it from the
+     * containers.
+     */
+    private static class ChangeListener implements ComponentAttachListener,
+            ComponentDetachListener, Runnable {
+
+        private final List<ComponentAttachDetachNotifier> containers = new ArrayList<ComponentAttachDetachNotifier>();
+        boolean changed;
+
+        void listen(Component c) {
+            if (c instanceof ComponentAttachDetachNotifier) {
+                ComponentAttachDetachNotifier n = (ComponentAttachDetachNotifier) c;
+                n.addComponentAttachListener(this);
+                n.addComponentDetachListener(this);
+                containers.add(n);
+            }
+        }
+
+        @Override
+        public void run() {
+            for (ComponentAttachDetachNotifier n : containers) {
+                n.removeComponentAttachListener(this);
+                n.removeComponentDetachListener(this);
+            }
+            containers.clear();
+        }
+
+        @Override
+        public void componentAttachedToContainer(ComponentAttachEvent event) {
+            changed = true;
+        }
+
+        @Override
+        public void componentDetachedFromContainer(ComponentDetachEvent event) {
+            changed = true;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.vaadin.johannesd.vquery;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.EventObject;
+
+import com.vaadin.data.Property.ValueChangeEvent;
+import com.vaadin.event.EventRouter;
+import com.vaadin.server.AbstractClientConnector;
+import com.vaadin.server.ErrorHandler;
+import com.vaadin.ui.Field;
+
+/**
+ * Wraps the event router of a field, holding back its value change events
+ * until {@link #release()} is called. All other calls are delegated to the
+ * wrapped router, so listeners added or removed in the meantime are kept in
+ * their order, and the held back event is finally fired through the router of
+ * the field like any other.
+ * <p>
+ * The router of a field is private to {@link AbstractClientConnector} and is
+ * replaced reflectively; if that is not possible, events are not held back.
+ *
+ * @see FieldQuery#setValues(java.util.Map)
+ */
+class DeferringRouter extends EventRouter {
+
+    private static final java.lang.reflect.Field ROUTER = routerField();
+
+    private final AbstractClientConnector field;
+    private final EventRouter router;
+    private boolean held = false;
+
+    private DeferringRouter(AbstractClientConnector field, EventRouter router) {
+        this.field = field;
+        this.router = router;
+    }
+
+    /**
+     * Starts holding back the value change events of {@code f}. Returns the
+     * router to release, or null if the events of {@code f} cannot be held
+     * back.
+     */
+    static DeferringRouter hold(Field<?> f) {
+        if (ROUTER == null || !(f instanceof AbstractClientConnector)) {
+            return null;
+        }
+        AbstractClientConnector c = (AbstractClientConnector) f;
+        EventRouter router = (EventRouter) get(c);
+        DeferringRouter deferring = new DeferringRouter(c,
+                router != null ? router : new EventRouter());
+        set(c, deferring);
+        return deferring;
+    }
+
+    /**
+     * Restores the wrapped router without firing the held back event.
+     */
+    void discard() {
+        set(field, router);
+    }
+
+    /**
+     * Restores the wrapped router and fires the held back event, if any,
+     * through it.
+     */
+    void release() {
+        discard();
+        if (held) {
+            held = false;
+            router.fireEvent(new Field.ValueChangeEvent((Field<?>) field));
+        }
+    }
+
+    @Override
+    public void fireEvent(EventObject event) {
+        if (event instanceof ValueChangeEvent) {
+            held = true;
+        } else {
+            router.fireEvent(event);
+        }
+    }
+
+    @Override
+    public void fireEvent(EventObject event, ErrorHandler errorHandler) {
+        if (event instanceof ValueChangeEvent) {
+            held = true;
+        } else {
+            router.fireEvent(event, errorHandler);
+        }
+    }
+
+    @Override
+    public void addListener(Class<?> eventType, Object target, Method method) {
+        router.addListener(eventType, target, method);
+    }
+
+    @Override
+    public void addListener(Class<?> eventType, Object target,
+            String methodName) {
+        router.addListener(eventType, target, methodName);
+    }
+
+    @Override
+    public void removeListener(Class<?> eventType, Object target) {
+        router.removeListener(eventType, target);
+    }
+
+    @Override
+    public void removeListener(Class<?> eventType, Object target,
+            Method method) {
+        router.removeListener(eventType, target, method);
+    }
+
+    @Override
+    public void removeListener(Class<?> eventType, Object target,
+            String methodName) {
+        router.removeListener(eventType, target, methodName);
+    }
+
+    @Override
+    public void removeAllListeners() {
+        router.removeAllListeners();
+    }
+
+    @Override
+    public boolean hasListeners(Class<?> eventType) {
+        return router.hasListeners(eventType);
+    }
+
+    @Override
+    public Collection<?> getListeners(Class<?> eventType) {
+        return router.getListeners(eventType);
+    }
+
+    private static java.lang.reflect.Field routerField() {
+        try {
+            java.lang.reflect.Field f = AbstractClientConnector.class
+                    .getDeclaredField("eventRouter");
+            f.setAccessible(true);
+            return f;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static Object get(AbstractClientConnector c) {
+        try {
+            return ROUTER.get(c);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void set(AbstractClientConnector c, EventRouter router) {
+        try {
+            ROUTER.set(c, router);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
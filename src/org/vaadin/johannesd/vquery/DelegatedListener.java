@@ -0,0 +1,181 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.vaadin.johannesd.vquery.HierarchyTracker.HierarchyListener;
+
+import com.vaadin.data.Property.ValueChangeListener;
+import com.vaadin.ui.Component;
+import com.vaadin.ui.Field;
+import com.vaadin.ui.UI;
+
+/**
+ * A value change listener delegated from a set of root components to the
+ * matching fields within them, including fields attached later.
+ * <p>
+ * The listener is added to each field that is an instance of a given type,
+ * satisfies a given predicate and is a descendant of one of the roots. Instead
+ * of rescanning the roots, the delegation listens to the
+ * {@link HierarchyTracker} of their UIs: fields are matched when they are
+ * attached within a root, or when a root is reattached along with one of its
+ * ancestors, and the listener is removed from them when they are detached.
+ * The predicate is evaluated once, when a field is attached.
+ * <p>
+ * The roots must be attached to a UI. A delegation stays registered until
+ * {@link #remove()} is called.
+ *
+ * @see AbstractQuery#delegateValueChangeListener(Class, Predicate,
+ *      ValueChangeListener)
+ *
+ * @author Johannes Dahlström
+ *
+ * @param <F>
+ *            The type of the fields listened to.
+ */
+public class DelegatedListener<F extends Field<?>> implements Serializable {
+
+    private final Set<Component> roots = Collections
+            .newSetFromMap(new IdentityHashMap<Component, Boolean>());
+    private final Set<HierarchyTracker> trackers = Collections
+            .newSetFromMap(new IdentityHashMap<HierarchyTracker, Boolean>());
+    private final Set<F> fields = Collections
+            .newSetFromMap(new IdentityHashMap<F, Boolean>());
+    private final Class<F> type;
+    private final Predicate<? super F> predicate;
+    private final ValueChangeListener listener;
+
+    private final HierarchyListener hierarchyListener = new HierarchyListener() {
+        @Override
+        public void componentAttached(Component c) {
+            if (isWithinRoot(c)) {
+                attach(c);
+                return;
+            }
+            // A root may have been reattached along with an ancestor
+            for (Component root : roots) {
+                if (isAncestorOrSelf(c, root)) {
+                    attach(root);
+                }
+            }
+        }
+
+        @Override
+        public void componentDetached(Component c) {
+            if (fields.isEmpty()) {
+                return;
+            }
+            for (Component d : Util.subtree(c)) {
+                if (fields.remove(d)) {
+                    type.cast(d).removeValueChangeListener(listener);
+                }
+            }
+        }
+
+        @Override
+        public void componentChanged(Component c) {
+        }
+    };
+
+    /**
+     * Delegates {@code listener} from {@code roots} to their descendants that
+     * are instances of {@code type} and satisfy {@code predicate}.
+     *
+     * @param predicate
+     *            The predicate, or null to select all instances of
+     *            {@code type}.
+     * @throws IllegalStateException
+     *             if a root is not attached to a UI.
+     */
+    public DelegatedListener(Collection<? extends Component> roots,
+            Class<F> type, Predicate<? super F> predicate,
+            ValueChangeListener listener) {
+        this.type = type;
+        this.predicate = predicate;
+        this.listener = listener;
+        for (Component root : roots) {
+            UI ui = root.getUI();
+            if (ui == null) {
+                throw new IllegalStateException(root + " is not attached");
+            }
+            trackers.add(HierarchyTracker.track(ui));
+            this.roots.add(root);
+        }
+        for (Component root : this.roots) {
+            attach(root);
+        }
+        for (HierarchyTracker tracker : trackers) {
+            tracker.addHierarchyListener(hierarchyListener);
+        }
+    }
+
+    /**
+     * Returns a query representing the fields the listener is currently added
+     * to.
+     */
+    public FieldQuery<F> getFields() {
+        return new FieldQuery<F>(fields);
+    }
+
+    /**
+     * Removes the listener from all the fields and releases the registration
+     * to the UI.
+     */
+    public void remove() {
+        for (HierarchyTracker tracker : trackers) {
+            tracker.removeHierarchyListener(hierarchyListener);
+        }
+        for (F f : fields) {
+            f.removeValueChangeListener(listener);
+        }
+        fields.clear();
+    }
+
+    private void attach(Component c) {
+        for (Component d : Util.subtree(c)) {
+            if (type.isInstance(d)) {
+                F f = type.cast(d);
+                if ((predicate == null || predicate.apply(f)) && fields.add(f)) {
+                    f.addValueChangeListener(listener);
+                }
+            }
+        }
+    }
+
+    private boolean isWithinRoot(Component c) {
+        for (Component p = c; p != null; p = p.getParent()) {
+            if (roots.contains(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isAncestorOrSelf(Component ancestor, Component c) {
+        for (Component p = c; p != null; p = p.getParent()) {
+            if (p == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import java.io.Serializable;
+import java.util.Set;
+
+import com.vaadin.ui.Component;
+
+/**
+ * The difference between two results of a query.
+ *
+ * @see AbstractQuery#delta(AbstractQuery)
+ *
+ * @author Johannes Dahlström
+ */
+public class Delta<C extends Component> implements Serializable {
+
+    private final Query<C> added;
+    private final Query<C> removed;
+
+    Delta(Set<C> added, Set<C> removed) {
+        this.added = new Query<C>(added);
+        this.removed = new Query<C>(removed);
+    }
+
+    /**
+     * Returns the components in the current result but not in the previous
+     * one, in the order of the current result.
+     */
+    public Query<C> getAdded() {
+        return added;
+    }
+
+    /**
+     * Returns the components in the previous result but not in the current
+     * one, in the order of the previous result.
+     */
+    public Query<C> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Returns whether the results are equal as sets.
+     */
+    public boolean isEmpty() {
+        return added.size() == 0 && removed.size() == 0;
+    }
+
+    /**
+     * Computes the difference between {@code previous} and {@code current}
+     * with a single hash lookup per component on each side.
+     */
+    static <C extends Component> Delta<C> compute(Set<? extends C> previous,
+            Set<C> current) {
+        Set<C> added = Util.set();
+        for (C c : current) {
+            if (!previous.contains(c)) {
+                added.add(c);
+            }
+        }
+        Set<C> removed = Util.set();
+        for (C c : previous) {
+            if (!current.contains(c)) {
+                removed.add(c);
+            }
+        }
+        return new Delta<C>(added, removed);
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import com.vaadin.ui.Component;
+import com.vaadin.ui.HasComponents;
+import com.vaadin.ui.UI;
+
+/**
+ * Keeps the components of a UI in document order, that is, the order in which
+ * a pre-order traversal of the hierarchy visits them.
+ * <p>
+ * When enabled for a UI, the results of {@link AbstractQuery#children()},
+ * {@link AbstractQuery#parent()} and {@link AbstractQuery#ancestors()} are
+ * returned in document order. The order is determined from a snapshot of the
+ * pre-order numbers of the components, which is taken lazily and retaken
+ * whenever a component is attached or detached or the
+ * {@link HierarchyTracker} of the UI is touched; changing the style names,
+ * visibility or enabled state of components does not invalidate it. The
+ * per-root results of a traversal form ascending runs of numbers that are
+ * merged in O(n log k) time for k interleaved runs, and in linear time if the
+ * result is already ordered.
+ * <p>
+ * Without a snapshot, {@link AbstractQuery#sortByDocumentOrder()} falls back
+ * to comparing the paths of the components from their roots, in O(n log n)
+ * comparisons.
+ *
+ * @author Johannes Dahlström
+ */
+public class DocumentOrder implements Serializable {
+
+    private final UI ui;
+    private final HierarchyTracker tracker;
+
+    private transient IdentityHashMap<Component, Integer> numbers;
+    private transient long version;
+
+    private DocumentOrder(UI ui, HierarchyTracker tracker) {
+        this.ui = ui;
+        this.tracker = tracker;
+    }
+
+    /**
+     * Enables document order for {@code ui}.
+     */
+    public static DocumentOrder enable(UI ui) {
+        HierarchyTracker tracker = HierarchyTracker.track(ui);
+        if (tracker.order == null) {
+            tracker.order = new DocumentOrder(ui, tracker);
+        }
+        return tracker.order;
+    }
+
+    /**
+     * Disables document order for {@code ui}, discarding the snapshot.
+     */
+    public static void disable(UI ui) {
+        HierarchyTracker tracker = HierarchyTracker.find(ui);
+        if (tracker != null) {
+            tracker.order = null;
+        }
+    }
+
+    /**
+     * Returns the document order of {@code ui} or null if it is not enabled.
+     */
+    public static DocumentOrder get(UI ui) {
+        HierarchyTracker tracker = HierarchyTracker.find(ui);
+        return tracker != null ? tracker.order : null;
+    }
+
+    /**
+     * Returns the pre-order number of {@code c} in the UI, or -1 if {@code c}
+     * is not in the UI.
+     */
+    public int indexOf(Component c) {
+        Integer n = numbers().get(c);
+        return n != null ? n : -1;
+    }
+
+    /**
+     * Returns {@code q} in document order if document order is enabled for
+     * the UI of its components, or {@code q} itself otherwise or if it is
+     * already ordered. The ordered query is memoized like {@code q}.
+     */
+    static <C extends Component> Query<C> ordered(Query<C> q) {
+        if (q.size() < 2) {
+            return q;
+        }
+        UI ui = q.first().getUI();
+        DocumentOrder order = ui != null ? get(ui) : null;
+        if (order == null) {
+            return q;
+        }
+        Set<C> cs = q.get();
+        Set<C> sorted = order.sort(cs);
+        return sorted == cs ? q : q.reordered(sorted);
+    }
+
+    /**
+     * Returns the components of {@code cs} in document order, using the
+     * snapshot of their UI if there is one.
+     */
+    static <C extends Component> Set<C> sortAny(Collection<C> cs) {
+        if (cs.isEmpty()) {
+            return Util.set(cs);
+        }
+        UI ui = cs.iterator().next().getUI();
+        DocumentOrder order = ui != null ? get(ui) : null;
+        return order != null ? order.sort(cs) : sortByPath(cs);
+    }
+
+    /**
+     * Returns the components of {@code cs} ordered by their pre-order
+     * numbers, or {@code cs} itself if they already are. Components not in
+     * the UI retain their relative order after the others.
+     */
+    <C extends Component> Set<C> sort(Collection<C> cs) {
+        final IdentityHashMap<Component, Integer> numbers = numbers();
+        boolean ordered = true;
+        int previous = -1;
+        for (C c : cs) {
+            Integer n = numbers.get(c);
+            int current = n != null ? n : Integer.MAX_VALUE;
+            if (current < previous) {
+                ordered = false;
+                break;
+            }
+            previous = current;
+        }
+        if (ordered && cs instanceof Set<?>) {
+            return (Set<C>) cs;
+        }
+        // A stable merge sort, merging the ascending runs of numbers
+        List<C> list = new ArrayList<C>(cs);
+        Collections.sort(list, new Comparator<C>() {
+            @Override
+            public int compare(C a, C b) {
+                Integer na = numbers.get(a);
+                Integer nb = numbers.get(b);
+                return Integer.compare(na != null ? na : Integer.MAX_VALUE,
+                        nb != null ? nb : Integer.MAX_VALUE);
+            }
+        });
+        return Util.set(list);
+    }
+
+    /**
+     * Returns the components of {@code cs} in document order by comparing
+     * their paths from the root. Components in different hierarchies are
+     * ordered by the first occurrence of their root in {@code cs}.
+     */
+    static <C extends Component> Set<C> sortByPath(Collection<C> cs) {
+        final IdentityHashMap<Component, int[]> paths = new IdentityHashMap<Component, int[]>();
+        final IdentityHashMap<Component, Integer> roots = new IdentityHashMap<Component, Integer>();
+        IdentityHashMap<HasComponents, IdentityHashMap<Component, Integer>> indices = new IdentityHashMap<HasComponents, IdentityHashMap<Component, Integer>>();
+        for (C c : cs) {
+            List<Integer> path = new ArrayList<Integer>();
+            Component root = c;
+            for (HasComponents p = c.getParent(); p != null; p = p
+                    .getParent()) {
+                IdentityHashMap<Component, Integer> index = indices.get(p);
+                if (index == null) {
+                    index = new IdentityHashMap<Component, Integer>();
+                    for (Component child : p) {
+                        index.put(child, index.size());
+                    }
+                    indices.put(p, index);
+                }
+                Integer i = index.get(root);
+                path.add(i != null ? i : -1);
+                root = p;
+            }
+            if (!roots.containsKey(root)) {
+                roots.put(root, roots.size());
+            }
+            int[] key = new int[path.size() + 1];
+            key[0] = roots.get(root);
+            for (int i = 1; i < key.length; i++) {
+                key[i] = path.get(path.size() - i);
+            }
+            paths.put(c, key);
+        }
+        List<C> list = new ArrayList<C>(cs);
+        Collections.sort(list, new Comparator<C>() {
+            @Override
+            public int compare(C a, C b) {
+                int[] pa = paths.get(a);
+                int[] pb = paths.get(b);
+                for (int i = 0; i < pa.length && i < pb.length; i++) {
+                    if (pa[i] != pb[i]) {
+                        return Integer.compare(pa[i], pb[i]);
+                    }
+                }
+                return Integer.compare(pa.length, pb.length);
+            }
+        });
+        return Util.set(list);
+    }
+
+    private IdentityHashMap<Component, Integer> numbers() {
+        if (numbers == null || version != tracker.getStructureVersion()) {
+            final IdentityHashMap<Component, Integer> numbers = new IdentityHashMap<Component, Integer>();
+            numbers.put(ui, 0);
+            Spliterator<Component> descendants = new SubtreeSpliterator(
+                    Collections.<Component> singleton(ui));
+            descendants.forEachRemaining(new Consumer<Component>() {
+                @Override
+                public void accept(Component c) {
+                    numbers.put(c, numbers.size());
+                }
+            });
+            this.numbers = numbers;
+            version = tracker.getStructureVersion();
+        }
+        return numbers;
+    }
+}
@@ -16,16 +16,47 @@
 
 package org.vaadin.johannesd.vquery;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Set;
 
+import com.vaadin.data.Buffered.SourceException;
+import com.vaadin.data.Property;
 import com.vaadin.data.Property.ValueChangeListener;
 import com.vaadin.data.Validator;
+import com.vaadin.data.Validator.InvalidValueException;
 import com.vaadin.ui.Field;
 
 public class FieldQuery<F extends Field<?>> extends
         AbstractQuery<F, FieldQuery<F>> {
 
+    /**
+     * Thrown by {@link FieldQuery#commit()} when one or more fields are
+     * invalid. The causes are the validation errors of the individual fields.
+     */
+    public static class InvalidFieldsException extends InvalidValueException {
+
+        private final java.util.Map<Field<?>, InvalidValueException> invalidFields;
+
+        public InvalidFieldsException(
+                java.util.Map<Field<?>, InvalidValueException> invalidFields) {
+            super(invalidFields.size() + " invalid field(s)", invalidFields
+                    .values().toArray(
+                            new InvalidValueException[invalidFields.size()]));
+            this.invalidFields = Collections.unmodifiableMap(invalidFields);
+        }
+
+        /**
+         * Returns the invalid fields mapped to their validation errors.
+         */
+        public java.util.Map<Field<?>, InvalidValueException> getInvalidFields() {
+            return invalidFields;
+        }
+    }
+
     public <G extends F> FieldQuery(G... fs) {
         super(fs);
     }
@@ -42,13 +73,13 @@ public class FieldQuery<F extends Field<?>> extends
      * Filtering
      */
 
+    /**
+     * Returns the subset of fields in this set for which
+     * {@code isValid() == valid}. The cached validity is used for fields that
+     * have {@link #setValidationCached(boolean) validation caching} enabled.
+     */
     public FieldQuery<F> isValid(final boolean valid) {
-        return filter(new Predicate<F>() {
-            @Override
-            public boolean apply(F f) {
-                return f.isValid() == valid;
-            }
-        });
+        return filter(Predicates.isValid(valid));
     }
 
     public FieldQuery<F> isRequired(final boolean required) {
@@ -116,13 +147,93 @@ public class FieldQuery<F extends Field<?>> extends
         return createQuery();
     }
 
-    public FieldQuery<F> setRequired(boolean required) {
+    /**
+     * Adds a listener notified once per request, or once per
+     * {@link ValueChangeBatch#setDebounce(long) debounce period}, of all the
+     * fields in this set whose values have changed.
+     *
+     * @return the batch, to be {@link ValueChangeBatch#remove() removed} when
+     *         no longer needed.
+     */
+    public ValueChangeBatch<F> addBatchedValueChangeListener(
+            ValueChangeBatch.Listener<F> listener) {
+        return new ValueChangeBatch<F>(this, listener);
+    }
+
+    /**
+     * Returns the values of the fields in this set that have an id, keyed by
+     * the id, in the order of the fields.
+     */
+    public java.util.Map<String, Object> getValues() {
+        java.util.Map<String, Object> values = new LinkedHashMap<String, Object>(
+                size() * 4 / 3 + 1);
         for (Field<?> f : this) {
-            f.setRequired(required);
+            if (f.getId() != null) {
+                values.put(f.getId(), f.getValue());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Sets the values of the fields in this set from {@code values}, keyed by
+     * the ids of the fields. Values whose id does not match a field in this
+     * set, and fields whose value would not change, are skipped.
+     * <p>
+     * The ids are resolved in a single pass over this set, so the fields
+     * should be selected once, for instance with
+     * {@code $(form).descendants().isField()}, rather than one by one with
+     * {@link #id(String)}. The value change events of the fields are held
+     * back until all the values have been set, and are then fired once per
+     * changed field, so that the listeners see the complete new state.
+     *
+     * @throws com.vaadin.data.Property.ReadOnlyException
+     *             if a field to be changed is read-only. The values already
+     *             set are kept and their listeners notified.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public FieldQuery<F> setValues(java.util.Map<String, ?> values) {
+        List<DeferringRouter> held = new ArrayList<DeferringRouter>();
+        try {
+            for (Field f : this) {
+                String id = f.getId();
+                if (id == null || !values.containsKey(id)) {
+                    continue;
+                }
+                Object value = values.get(id);
+                if (value == null ? f.getValue() == null : value.equals(f
+                        .getValue())) {
+                    continue;
+                }
+                DeferringRouter router = DeferringRouter.hold(f);
+                try {
+                    f.setValue(value);
+                } catch (RuntimeException e) {
+                    if (router != null) {
+                        router.discard();
+                    }
+                    throw e;
+                }
+                if (router != null) {
+                    held.add(router);
+                }
+            }
+        } finally {
+            // Restore every router before notifying any listener
+            for (DeferringRouter router : held) {
+                router.discard();
+            }
+            for (DeferringRouter router : held) {
+                router.release();
+            }
         }
         return createQuery();
     }
 
+    public FieldQuery<F> setRequired(boolean required) {
+        return mutate("required", required);
+    }
+
     public FieldQuery<F> setBuffered(boolean buffered) {
         for (Field<?> f : this) {
             f.setBuffered(buffered);
@@ -131,15 +242,13 @@ public class FieldQuery<F extends Field<?>> extends
     }
 
     public FieldQuery<F> setRequiredError(String error) {
-        for (Field<?> f : this) {
-            f.setRequiredError(error);
-        }
-        return createQuery();
+        return mutate("requiredError", error);
     }
 
     public FieldQuery<F> addValidator(Validator v) {
         for (Field<?> f : this) {
             f.addValidator(v);
+            ValidityCache.invalidate(f);
         }
         return createQuery();
     }
@@ -147,28 +256,187 @@ public class FieldQuery<F extends Field<?>> extends
     public FieldQuery<F> removeValidator(Validator v) {
         for (Field<?> f : this) {
             f.removeValidator(v);
+            ValidityCache.invalidate(f);
         }
         return createQuery();
     }
 
-    public FieldQuery<F> commit() {
+    /**
+     * Enables or disables caching the validity of the fields in this set.
+     * <p>
+     * When enabled, the result of {@link Field#isValid()} is cached per field
+     * and reused by {@link #isValid(boolean)} and {@link #commit()} until the
+     * value of the field changes. The cache is also cleared by
+     * {@link #addValidator(Validator)}, {@link #removeValidator(Validator)} and
+     * {@link #setRequired(boolean)}. Validators, or the required state, should
+     * not be changed directly on a field that caches its validity.
+     */
+    public FieldQuery<F> setValidationCached(boolean cached) {
         for (Field<?> f : this) {
-            // TODO transactionality
-            f.commit();
+            if (cached) {
+                ValidityCache.install(f);
+            } else {
+                ValidityCache.uninstall(f);
+            }
         }
         return createQuery();
     }
 
-    public FieldQuery<F> discard() {
+    /**
+     * Commits all the fields in this query as a single transaction.
+     * <p>
+     * First all the fields are validated, and if any of them is invalid, an
+     * exception listing every invalid field is thrown without committing
+     * anything. The fields are then committed in order without validating
+     * them again. If committing a field fails, the data sources of the fields
+     * already committed are restored to their previous values, the fields keep
+     * their uncommitted values, and the exception is rethrown.
+     * 
+     * @throws InvalidFieldsException
+     *             if any of the fields is invalid.
+     * @throws SourceException
+     *             if committing a field to its data source fails.
+     */
+    public FieldQuery<F> commit() throws InvalidFieldsException,
+            SourceException {
+        validateAll();
+
+        List<Snapshot> committed = new ArrayList<Snapshot>();
         for (Field<?> f : this) {
-            // TODO transactionality
-            f.discard();
+            Snapshot snapshot = new Snapshot(f);
+            boolean invalidCommitted = f.isInvalidCommitted();
+            // Already validated above
+            f.setInvalidCommitted(true);
+            try {
+                f.commit();
+            } catch (RuntimeException e) {
+                for (int i = committed.size() - 1; i >= 0; i--) {
+                    committed.get(i).rollbackCommit(e);
+                }
+                throw e;
+            } finally {
+                f.setInvalidCommitted(invalidCommitted);
+            }
+            committed.add(snapshot);
         }
         return createQuery();
     }
 
+    /**
+     * Discards the uncommitted values of all the fields in this query as a
+     * single transaction. If discarding a field fails, the fields already
+     * discarded get their uncommitted values back and the exception is
+     * rethrown.
+     * 
+     * @throws SourceException
+     *             if reading the value of a field from its data source fails.
+     */
+    public FieldQuery<F> discard() throws SourceException {
+        List<Snapshot> discarded = new ArrayList<Snapshot>();
+        for (Field<?> f : this) {
+            Snapshot snapshot = new Snapshot(f);
+            try {
+                f.discard();
+            } catch (RuntimeException e) {
+                for (int i = discarded.size() - 1; i >= 0; i--) {
+                    discarded.get(i).rollbackDiscard(e);
+                }
+                throw e;
+            }
+            discarded.add(snapshot);
+        }
+        return createQuery();
+    }
+
+    /**
+     * Validates all the fields in this query, except those that allow
+     * committing invalid values.
+     * 
+     * @throws InvalidFieldsException
+     *             if any of the fields is invalid.
+     */
+    protected void validateAll() throws InvalidFieldsException {
+        java.util.Map<Field<?>, InvalidValueException> errors = null;
+        for (Field<?> f : this) {
+            if (f.isInvalidCommitted()) {
+                continue;
+            }
+            ValidityCache cache = ValidityCache.find(f);
+            InvalidValueException error = null;
+            if (cache != null) {
+                error = cache.validate(f);
+            } else {
+                try {
+                    f.validate();
+                } catch (InvalidValueException e) {
+                    error = e;
+                }
+            }
+            if (error != null) {
+                if (errors == null) {
+                    errors = new LinkedHashMap<Field<?>, InvalidValueException>();
+                }
+                errors.put(f, error);
+            }
+        }
+        if (errors != null) {
+            throw new InvalidFieldsException(errors);
+        }
+    }
+
     @Override
     protected <G extends F> FieldQuery<F> createQuery(Set<G> gs) {
         return new FieldQuery<F>(gs);
     }
+
+    /**
+     * The state of a field and its data source prior to a commit or discard.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static class Snapshot {
+        private final Field field;
+        private final Object value;
+        private final boolean modified;
+        private final Property source;
+        private final Object sourceValue;
+
+        Snapshot(Field<?> field) {
+            this.field = field;
+            value = field.getValue();
+            modified = field.isModified();
+            source = field.getPropertyDataSource();
+            sourceValue = source != null ? source.getValue() : null;
+        }
+
+        /**
+         * Restores the data source value and the uncommitted field value.
+         */
+        void rollbackCommit(Throwable cause) {
+            if (source == null || !field.isBuffered()) {
+                return;
+            }
+            try {
+                source.setValue(sourceValue);
+                // Buffered fields do not reread the source by themselves
+                field.discard();
+                field.setValue(value);
+            } catch (RuntimeException e) {
+                cause.addSuppressed(e);
+            }
+        }
+
+        /**
+         * Restores the uncommitted field value.
+         */
+        void rollbackDiscard(Throwable cause) {
+            if (!modified || !field.isBuffered()) {
+                return;
+            }
+            try {
+                field.setValue(value);
+            } catch (RuntimeException e) {
+                cause.addSuppressed(e);
+            }
+        }
+    }
 }
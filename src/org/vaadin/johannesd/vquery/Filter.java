@@ -23,7 +23,18 @@ import com.vaadin.ui.Component;
 public interface Filter<T extends Component> {
     Set<T> apply(Set<T> cs);
 
+    /**
+     * A filter retaining the components that satisfy a predicate. Combined
+     * predicates are optimized before filtering, and again once a sample of
+     * the components has been evaluated.
+     */
     class ByPredicate<T extends Component> implements Filter<T> {
+
+        /**
+         * The number of components evaluated before reoptimizing.
+         */
+        static final int WARMUP = 4 * Predicates.SAMPLE_INTERVAL;
+
         private Predicate<? super T> predicate;
 
         public ByPredicate(Predicate<? super T> p) {
@@ -32,11 +43,16 @@ public interface Filter<T extends Component> {
 
         @Override
         public Set<T> apply(Set<T> cs) {
+            Predicates.optimize(predicate);
             Set<T> result = Util.set();
+            int evaluated = 0;
             for (T c : cs) {
                 if (predicate.apply(c)) {
                     result.add(c);
                 }
+                if (++evaluated == WARMUP) {
+                    Predicates.optimize(predicate);
+                }
             }
             return result;
         }
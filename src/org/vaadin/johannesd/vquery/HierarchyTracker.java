@@ -0,0 +1,255 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.vaadin.ui.Component;
+import com.vaadin.ui.HasComponents;
+import com.vaadin.ui.HasComponents.ComponentAttachDetachNotifier;
+import com.vaadin.ui.HasComponents.ComponentAttachEvent;
+import com.vaadin.ui.HasComponents.ComponentAttachListener;
+import com.vaadin.ui.HasComponents.ComponentDetachEvent;
+import com.vaadin.ui.HasComponents.ComponentDetachListener;
+import com.vaadin.ui.UI;
+
+/**
+ * Keeps track of structural changes in the component hierarchy of a
+ * {@link UI}.
+ * <p>
+ * A tracker maintains a version number that is incremented whenever a
+ * component is attached to or detached from a container in the hierarchy, and
+ * whenever the style names, visibility or enabled state of a component is
+ * changed through vQuery. Changes made directly through the component API are
+ * not seen by the tracker; {@link #touch()} may be called to signal such
+ * changes. Note also that subwindows added with {@link UI#addWindow} do not
+ * fire container events.
+ * <p>
+ * The tracker registers itself as a component attach and detach listener on
+ * every container in the hierarchy, and is therefore serialized along with the
+ * UI. {@link HierarchyListener Hierarchy listeners} may be added to the tracker
+ * to be notified of individual changes.
+ *
+ * @author Johannes Dahlström
+ */
+public class HierarchyTracker implements ComponentAttachListener,
+        ComponentDetachListener {
+
+    /**
+     * Receives notifications of changes in a tracked hierarchy.
+     */
+    public interface HierarchyListener extends Serializable {
+
+        /**
+         * Called after {@code c}, along with its descendants, has been attached
+         * to a container in the hierarchy.
+         */
+        void componentAttached(Component c);
+
+        /**
+         * Called after {@code c}, along with its descendants, has been
+         * detached from its container in the hierarchy.
+         */
+        void componentDetached(Component c);
+
+        /**
+         * Called after the style names, visibility or enabled state of
+         * {@code c} has been changed through vQuery.
+         */
+        void componentChanged(Component c);
+    }
+
+    private long version = 0;
+
+    private long structureVersion = 0;
+
+    private List<HierarchyListener> listeners = new ArrayList<HierarchyListener>();
+
+    QueryCache cache;
+
+    MutationBatch batch;
+
+    DocumentOrder order;
+
+    private HierarchyTracker() {
+    }
+
+    /**
+     * Returns the tracker of {@code ui}, installing a new one if there is none
+     * yet.
+     */
+    public static HierarchyTracker track(UI ui) {
+        HierarchyTracker tracker = find(ui);
+        if (tracker == null) {
+            tracker = new HierarchyTracker();
+            tracker.register(ui);
+        }
+        return tracker;
+    }
+
+    /**
+     * Returns the tracker of {@code ui} or null if the hierarchy of
+     * {@code ui} is not tracked.
+     */
+    public static HierarchyTracker find(UI ui) {
+        for (Object listener : ui.getListeners(ComponentAttachEvent.class)) {
+            if (listener instanceof HierarchyTracker) {
+                return (HierarchyTracker) listener;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the tracker of the UI {@code c} is attached to or null if
+     * {@code c} is not attached or its UI is not tracked.
+     */
+    public static HierarchyTracker find(Component c) {
+        UI ui = c.getUI();
+        return ui != null ? find(ui) : null;
+    }
+
+    /**
+     * Notifies the tracker of the UI {@code c} is attached to, if any, that
+     * the properties of {@code c} have changed.
+     *
+     * @see #changed(Component)
+     */
+    public static void touch(Component c) {
+        HierarchyTracker tracker = find(c);
+        if (tracker != null) {
+            tracker.changed(c);
+        }
+    }
+
+    /**
+     * Adds a listener to be notified of changes in the tracked hierarchy.
+     */
+    public void addHierarchyListener(HierarchyListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener added with
+     * {@link #addHierarchyListener(HierarchyListener)}.
+     */
+    public void removeHierarchyListener(HierarchyListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns the current version of the tracked hierarchy.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns a version that, unlike {@link #getVersion()}, is not incremented
+     * by {@link #changed(Component)}, but only when components are attached
+     * or detached or the tracker is {@link #touch() touched}.
+     */
+    long getStructureVersion() {
+        return structureVersion;
+    }
+
+    /**
+     * Increments the version of the tracked hierarchy. As the kind of the
+     * change is not known, it is also assumed to be structural.
+     */
+    public void touch() {
+        version++;
+        structureVersion++;
+    }
+
+    /**
+     * Increments the version of the tracked hierarchy and notifies the
+     * hierarchy listeners that the properties of {@code c} have changed.
+     */
+    public void changed(Component c) {
+        version++;
+        for (HierarchyListener listener : listeners()) {
+            listener.componentChanged(c);
+        }
+    }
+
+    @Override
+    public void componentAttachedToContainer(ComponentAttachEvent event) {
+        Component c = event.getAttachedComponent();
+        register(c);
+        touch();
+        for (HierarchyListener listener : listeners()) {
+            listener.componentAttached(c);
+        }
+    }
+
+    @Override
+    public void componentDetachedFromContainer(ComponentDetachEvent event) {
+        Component c = event.getDetachedComponent();
+        unregister(c);
+        touch();
+        for (HierarchyListener listener : listeners()) {
+            listener.componentDetached(c);
+        }
+    }
+
+    /**
+     * Returns a copy of the listener list, allowing listeners to remove
+     * themselves.
+     */
+    private List<HierarchyListener> listeners() {
+        return listeners.isEmpty() ? listeners
+                : new ArrayList<HierarchyListener>(listeners);
+    }
+
+    /**
+     * Adds this tracker as a listener to {@code c} and all its descendants.
+     */
+    private void register(Component c) {
+        if (c instanceof ComponentAttachDetachNotifier) {
+            ComponentAttachDetachNotifier n = (ComponentAttachDetachNotifier) c;
+            // Listeners are not deduplicated
+            n.removeComponentAttachListener(this);
+            n.removeComponentDetachListener(this);
+            n.addComponentAttachListener(this);
+            n.addComponentDetachListener(this);
+        }
+        if (c instanceof HasComponents) {
+            for (Component child : (HasComponents) c) {
+                register(child);
+            }
+        }
+    }
+
+    /**
+     * Removes this tracker from {@code c} and all its descendants.
+     */
+    private void unregister(Component c) {
+        if (c instanceof ComponentAttachDetachNotifier) {
+            ComponentAttachDetachNotifier n = (ComponentAttachDetachNotifier) c;
+            n.removeComponentAttachListener(this);
+            n.removeComponentDetachListener(this);
+        }
+        if (c instanceof HasComponents) {
+            for (Component child : (HasComponents) c) {
+                unregister(child);
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EventObject;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.vaadin.johannesd.vquery.HierarchyTracker.HierarchyListener;
+
+import com.vaadin.ui.Component;
+import com.vaadin.ui.UI;
+
+/**
+ * A set of components in a UI that is kept up to date as components are
+ * attached and detached.
+ * <p>
+ * A live query selects those components in the UI that are instances of a
+ * given type and satisfy a given predicate, like
+ * {@code $().is(type).filter(predicate)}. Instead of rescanning the hierarchy,
+ * the query listens to its {@link HierarchyTracker} and evaluates the
+ * predicate only for the components that were attached, detached or changed.
+ * {@link ChangeListener Change listeners} are notified of the components that
+ * were added to or removed from the set.
+ * <p>
+ * A live query stays registered to its UI until {@link #stop()} is called.
+ *
+ * @author Johannes Dahlström
+ *
+ * @param <C>
+ *            The type of the components in the query.
+ */
+public class LiveQuery<C extends Component> implements Serializable,
+        Iterable<C> {
+
+    /**
+     * An event describing the components that were added to or removed from a
+     * live query.
+     */
+    public static class ChangeEvent<C extends Component> extends EventObject {
+
+        private final Set<C> added;
+        private final Set<C> removed;
+
+        ChangeEvent(LiveQuery<C> source, Set<C> added, Set<C> removed) {
+            super(source);
+            this.added = Collections.unmodifiableSet(added);
+            this.removed = Collections.unmodifiableSet(removed);
+        }
+
+        /**
+         * Returns the live query that changed.
+         */
+        @SuppressWarnings("unchecked")
+        public LiveQuery<C> getQuery() {
+            return (LiveQuery<C>) getSource();
+        }
+
+        /**
+         * Returns the components added to the query.
+         */
+        public Set<C> getAdded() {
+            return added;
+        }
+
+        /**
+         * Returns the components removed from the query.
+         */
+        public Set<C> getRemoved() {
+            return removed;
+        }
+    }
+
+    /**
+     * Receives notifications when components are added to or removed from a
+     * live query.
+     */
+    public interface ChangeListener<C extends Component> extends Serializable {
+        void queryChanged(ChangeEvent<C> event);
+    }
+
+    private final Class<C> type;
+    private final Predicate<? super C> predicate;
+    private final HierarchyTracker tracker;
+    private final Set<C> cs = Util.set();
+    private final List<ChangeListener<C>> listeners = new ArrayList<ChangeListener<C>>();
+    private boolean reevaluateOnChange = true;
+
+    private final HierarchyListener hierarchyListener = new HierarchyListener() {
+        @Override
+        public void componentAttached(Component c) {
+            Set<C> added = Util.set();
+            for (Component d : Util.subtree(c)) {
+                if (matches(d) && cs.add(type.cast(d))) {
+                    added.add(type.cast(d));
+                }
+            }
+            fireChange(added, Util.<C> set());
+        }
+
+        @Override
+        public void componentDetached(Component c) {
+            Set<C> removed = Util.set();
+            for (Component d : Util.subtree(c)) {
+                if (cs.remove(d)) {
+                    removed.add(type.cast(d));
+                }
+            }
+            fireChange(Util.<C> set(), removed);
+        }
+
+        @Override
+        public void componentChanged(Component c) {
+            if (!reevaluateOnChange) {
+                return;
+            }
+            Set<C> added = Util.set();
+            Set<C> removed = Util.set();
+            if (matches(c)) {
+                if (cs.add(type.cast(c))) {
+                    added.add(type.cast(c));
+                }
+            } else if (cs.remove(c)) {
+                removed.add(type.cast(c));
+            }
+            fireChange(added, removed);
+        }
+    };
+
+    /**
+     * Constructs a live query representing the components in {@code ui} that
+     * are instances of {@code type}.
+     */
+    public LiveQuery(UI ui, Class<C> type) {
+        this(ui, type, null);
+    }
+
+    /**
+     * Constructs a live query representing the components in {@code ui} that
+     * are instances of {@code type} and satisfy {@code predicate}.
+     *
+     * @param predicate
+     *            The predicate, or null to select all instances of
+     *            {@code type}.
+     */
+    public LiveQuery(UI ui, Class<C> type, Predicate<? super C> predicate) {
+        this.type = type;
+        this.predicate = predicate;
+        tracker = HierarchyTracker.track(ui);
+        for (Component c : Util.subtree(ui)) {
+            if (matches(c)) {
+                cs.add(type.cast(c));
+            }
+        }
+        tracker.addHierarchyListener(hierarchyListener);
+    }
+
+    /**
+     * Sets whether components whose style names, visibility or enabled state
+     * are changed through vQuery are reevaluated. The default is true.
+     */
+    public LiveQuery<C> setReevaluateOnChange(boolean reevaluate) {
+        reevaluateOnChange = reevaluate;
+        return this;
+    }
+
+    /**
+     * Adds a listener to be notified when components are added to or removed
+     * from this query.
+     */
+    public LiveQuery<C> addChangeListener(ChangeListener<C> listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    /**
+     * Removes a listener added with {@link #addChangeListener}.
+     */
+    public LiveQuery<C> removeChangeListener(ChangeListener<C> listener) {
+        listeners.remove(listener);
+        return this;
+    }
+
+    /**
+     * Stops updating this query and releases its registration to the UI.
+     */
+    public void stop() {
+        tracker.removeHierarchyListener(hierarchyListener);
+    }
+
+    /**
+     * Returns a query representing the components currently in this set.
+     */
+    public Query<C> get() {
+        return new Query<C>(cs);
+    }
+
+    /**
+     * Returns the number of components currently in this set.
+     */
+    public int size() {
+        return cs.size();
+    }
+
+    /**
+     * Returns an iterator yielding the components currently in this set.
+     */
+    @Override
+    public Iterator<C> iterator() {
+        return Collections.unmodifiableSet(cs).iterator();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + cs;
+    }
+
+    private boolean matches(Component c) {
+        return type.isInstance(c)
+                && (predicate == null || predicate.apply(type.cast(c)));
+    }
+
+    private void fireChange(Set<C> added, Set<C> removed) {
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        ChangeEvent<C> event = new ChangeEvent<C>(this, added, removed);
+        for (ChangeListener<C> listener : new ArrayList<ChangeListener<C>>(
+                listeners)) {
+            listener.queryChanged(event);
+        }
+    }
+}
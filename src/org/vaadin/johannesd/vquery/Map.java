@@ -16,6 +16,14 @@
 
 package org.vaadin.johannesd.vquery;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Set;
 
 import com.vaadin.ui.Component;
@@ -82,4 +90,313 @@ public interface Map<From, To> {
             return result;
         }
     };
+
+    /**
+     * Maps each component to its nearest ancestor satisfying a predicate. The
+     * ancestors visited while climbing are memoized, so components sharing
+     * ancestors climb each ancestor at most once.
+     */
+    public static class Closest<D extends Component> implements
+            Map<Component, D> {
+
+        private static final Object NONE = new Object();
+
+        private final Predicate<? super HasComponents> predicate;
+        private final Class<D> type;
+
+        public Closest(Predicate<? super HasComponents> predicate, Class<D> type) {
+            this.predicate = predicate;
+            this.type = type;
+        }
+
+        @Override
+        public Set<D> apply(Set<? extends Component> cs) {
+            /*
+             * Maps a visited ancestor to the nearest match at or above it, or
+             * to NONE if there is none.
+             */
+            IdentityHashMap<HasComponents, Object> closest = new IdentityHashMap<HasComponents, Object>();
+            List<HasComponents> path = new ArrayList<HasComponents>();
+            Set<D> result = Util.set();
+            for (Component c : cs) {
+                Object match = NONE;
+                for (HasComponents p = c.getParent(); p != null; p = p
+                        .getParent()) {
+                    Object known = closest.get(p);
+                    if (known != null) {
+                        match = known;
+                        break;
+                    }
+                    path.add(p);
+                    if (predicate.apply(p)) {
+                        match = p;
+                        break;
+                    }
+                }
+                for (HasComponents visited : path) {
+                    closest.put(visited, match);
+                }
+                path.clear();
+                if (match != NONE) {
+                    result.add(type.cast(match));
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Retains the components that have a descendant satisfying a predicate.
+     * Whether the subtree of a component contains a match is computed in a
+     * single post-order pass over the union of the subtrees of the
+     * components, so nested components do not cause their common descendants
+     * to be visited more than once.
+     */
+    public static class Has<T extends Component> implements Map<T, T> {
+
+        private final Predicate<? super Component> predicate;
+
+        public Has(Predicate<? super Component> predicate) {
+            this.predicate = predicate;
+        }
+
+        @Override
+        public Set<T> apply(Set<? extends T> cs) {
+            /*
+             * Whether a visited component has a matching descendant.
+             */
+            IdentityHashMap<Component, Boolean> has = new IdentityHashMap<Component, Boolean>();
+            Set<T> result = Util.set();
+            for (T c : cs) {
+                if (!has.containsKey(c)) {
+                    visit(c, has);
+                }
+                if (has.get(c)) {
+                    result.add(c);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Computes {@code has} for {@code root} and all its unvisited
+         * descendants in post-order, without recursion.
+         */
+        private void visit(Component root,
+                IdentityHashMap<Component, Boolean> has) {
+            Deque<Component> stack = new ArrayDeque<Component>();
+            Deque<Iterator<Component>> children = new ArrayDeque<Iterator<Component>>();
+            stack.push(root);
+            children.push(children(root));
+            while (!stack.isEmpty()) {
+                Iterator<Component> i = children.peek();
+                if (i.hasNext()) {
+                    Component child = i.next();
+                    if (!has.containsKey(child)) {
+                        stack.push(child);
+                        children.push(children(child));
+                    }
+                } else {
+                    Component c = stack.pop();
+                    children.pop();
+                    boolean found = false;
+                    for (Iterator<Component> j = children(c); j.hasNext()
+                            && !found;) {
+                        Component child = j.next();
+                        found = has.get(child) || predicate.apply(child);
+                    }
+                    has.put(c, found);
+                }
+            }
+        }
+
+        private static Iterator<Component> children(Component c) {
+            return c instanceof HasComponents ? ((HasComponents) c)
+                    .iterator() : Collections.<Component> emptyIterator();
+        }
+    }
+
+    /**
+     * Maps components to their siblings along an {@link Axis}. The components
+     * are grouped by parent, and the children of each parent are iterated
+     * once regardless of how many of them are in the set. The result is
+     * grouped by parent, with the siblings of each parent in their order in
+     * the parent.
+     */
+    public static class Siblings implements Map<Component, Component> {
+
+        /**
+         * The siblings a component is mapped to.
+         */
+        public enum Axis {
+            /** All the siblings. */
+            SIBLINGS,
+            /** The next sibling. */
+            NEXT,
+            /** The previous sibling. */
+            PREV,
+            /** All the following siblings. */
+            NEXT_ALL,
+            /** All the preceding siblings. */
+            PREV_ALL
+        }
+
+        private final Axis axis;
+
+        public Siblings(Axis axis) {
+            this.axis = axis;
+        }
+
+        @Override
+        public Set<Component> apply(Set<? extends Component> cs) {
+            java.util.Map<HasComponents, Set<Component>> byParent = new LinkedHashMap<HasComponents, Set<Component>>();
+            for (Component c : cs) {
+                HasComponents parent = c.getParent();
+                if (parent != null) {
+                    Set<Component> selected = byParent.get(parent);
+                    if (selected == null) {
+                        selected = Collections
+                                .newSetFromMap(new IdentityHashMap<Component, Boolean>());
+                        byParent.put(parent, selected);
+                    }
+                    selected.add(c);
+                }
+            }
+            Set<Component> result = Util.set();
+            for (java.util.Map.Entry<HasComponents, Set<Component>> e : byParent
+                    .entrySet()) {
+                apply(e.getKey(), e.getValue(), result);
+            }
+            return result;
+        }
+
+        private void apply(HasComponents parent, Set<Component> selected,
+                Set<Component> result) {
+            List<Component> children = new ArrayList<Component>();
+            int first = -1;
+            int last = -1;
+            for (Component child : parent) {
+                if (selected.contains(child)) {
+                    if (first < 0) {
+                        first = children.size();
+                    }
+                    last = children.size();
+                }
+                children.add(child);
+            }
+            switch (axis) {
+            case SIBLINGS:
+                for (Component child : children) {
+                    if (selected.size() > 1 || !selected.contains(child)) {
+                        result.add(child);
+                    }
+                }
+                break;
+            case NEXT:
+                for (int i = 1; i < children.size(); i++) {
+                    if (selected.contains(children.get(i - 1))) {
+                        result.add(children.get(i));
+                    }
+                }
+                break;
+            case PREV:
+                for (int i = 0; i < children.size() - 1; i++) {
+                    if (selected.contains(children.get(i + 1))) {
+                        result.add(children.get(i));
+                    }
+                }
+                break;
+            case NEXT_ALL:
+                if (first >= 0) {
+                    result.addAll(children.subList(first + 1, children.size()));
+                }
+                break;
+            case PREV_ALL:
+                if (last >= 0) {
+                    result.addAll(children.subList(0, last));
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Maps components to those of their descendants that satisfy a predicate
+     * and are reachable through components that satisfy it. The subtree of a
+     * component that does not satisfy the predicate is never entered.
+     */
+    public static class DescendantsWhere implements Map<Component, Component> {
+
+        private final Predicate<? super Component> predicate;
+
+        public DescendantsWhere(Predicate<? super Component> predicate) {
+            this.predicate = predicate;
+        }
+
+        @Override
+        public Set<Component> apply(Set<? extends Component> cs) {
+            Set<Component> result = Util.set();
+            for (Component c : cs) {
+                addDescendants(c, result);
+            }
+            return result;
+        }
+
+        private void addDescendants(Component c, Set<Component> result) {
+            if (c instanceof HasComponents) {
+                for (Component child : (HasComponents) c) {
+                    if (predicate.apply(child) && result.add(child)) {
+                        addDescendants(child, result);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Retains the components whose effective state equals an expected value,
+     * the effective state being true if a predicate holds for the component
+     * and all its ancestors. The effective state of each visited ancestor is
+     * memoized, so ancestors shared by several components are evaluated once.
+     */
+    public static class Inherited<T extends Component> implements Map<T, T> {
+
+        private final Predicate<? super Component> predicate;
+        private final boolean expected;
+
+        public Inherited(Predicate<? super Component> predicate,
+                boolean expected) {
+            this.predicate = predicate;
+            this.expected = expected;
+        }
+
+        @Override
+        public Set<T> apply(Set<? extends T> cs) {
+            IdentityHashMap<Component, Boolean> effective = new IdentityHashMap<Component, Boolean>();
+            List<Component> path = new ArrayList<Component>();
+            Set<T> result = Util.set();
+            for (T c : cs) {
+                // Climb to the nearest evaluated ancestor, then descend
+                boolean inherited = true;
+                for (Component a = c; a != null; a = a.getParent()) {
+                    Boolean known = effective.get(a);
+                    if (known != null) {
+                        inherited = known;
+                        break;
+                    }
+                    path.add(a);
+                }
+                for (int i = path.size() - 1; i >= 0; i--) {
+                    Component a = path.get(i);
+                    inherited = inherited && predicate.apply(a);
+                    effective.put(a, inherited);
+                }
+                path.clear();
+                if (effective.get(c) == expected) {
+                    result.add(c);
+                }
+            }
+            return result;
+        }
+    }
 }
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.Component;
+import com.vaadin.ui.UI;
+import com.vaadin.util.CurrentInstance;
+
+/**
+ * A query evaluated in every UI of a set of sessions.
+ * <p>
+ * The UIs of each session are evaluated in a separate task on a bounded
+ * executor, holding the lock of that session only. The function applied to
+ * each UI receives {@link VQuery#all() all} the components of the UI, and
+ * {@link UI#getCurrent()} is set to the UI while the function runs. The
+ * results are merged in session order. Functions that only need the UI
+ * itself, not its components, can be applied with {@link #mapUIs(Function)}
+ * without building the result set.
+ * <p>
+ * The blocking methods cannot be called while holding a session lock, as
+ * waiting for the other sessions could then deadlock. From a request thread,
+ * use {@link #mapAsync(Function)} instead.
+ *
+ * @see VQuery#inSession(VaadinSession)
+ * @see VQuery#inService(com.vaadin.server.VaadinService)
+ *
+ * @author Johannes Dahlström
+ */
+public class MultiUIQuery {
+
+    private final Collection<VaadinSession> sessions;
+    private Executor executor;
+
+    /**
+     * Constructs a query targeting all the UIs of the given sessions.
+     */
+    public MultiUIQuery(Collection<VaadinSession> sessions) {
+        this.sessions = new ArrayList<VaadinSession>(sessions);
+    }
+
+    /**
+     * Sets the executor used to evaluate the sessions. By default, a shared
+     * pool with one thread per processor is used.
+     */
+    public MultiUIQuery withExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Returns the results of applying {@code f} to every UI.
+     *
+     * @throws IllegalStateException
+     *             if the calling thread holds a session lock.
+     */
+    public <R> List<R> map(Function<? super Query<Component>, R> f) {
+        checkNoSessionLocked();
+        return join(mapAsync(f));
+    }
+
+    /**
+     * Returns the results of applying {@code f} to every UI itself. Unlike
+     * {@link #map(Function)}, the components of the UIs are not collected.
+     *
+     * @throws IllegalStateException
+     *             if the calling thread holds a session lock.
+     */
+    public <R> List<R> mapUIs(Function<? super UI, R> f) {
+        checkNoSessionLocked();
+        return join(mapUIsAsync(f));
+    }
+
+    private static <R> List<R> join(CompletableFuture<List<R>> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a future completed with the results of applying {@code f} to
+     * every UI. Does not block, and may therefore be called while holding a
+     * session lock.
+     */
+    public <R> CompletableFuture<List<R>> mapAsync(
+            final Function<? super Query<Component>, R> f) {
+        return mapUIsAsync(new Function<UI, R>() {
+            @Override
+            public R apply(UI ui) {
+                return f.apply(VQuery.all(ui));
+            }
+        });
+    }
+
+    /**
+     * Returns a future completed with the results of applying {@code f} to
+     * every UI itself. Does not block, and may therefore be called while
+     * holding a session lock.
+     */
+    public <R> CompletableFuture<List<R>> mapUIsAsync(
+            final Function<? super UI, R> f) {
+        final List<CompletableFuture<List<R>>> futures = new ArrayList<CompletableFuture<List<R>>>();
+        for (final VaadinSession session : sessions) {
+            futures.add(CompletableFuture.supplyAsync(new Supplier<List<R>>() {
+                @Override
+                public List<R> get() {
+                    return evaluate(session, f);
+                }
+            }, executor()));
+        }
+        return CompletableFuture.allOf(
+                futures.toArray(new CompletableFuture<?>[futures.size()]))
+                .thenApply(new Function<Void, List<R>>() {
+                    @Override
+                    public List<R> apply(Void v) {
+                        List<R> result = new ArrayList<R>();
+                        for (CompletableFuture<List<R>> future : futures) {
+                            result.addAll(future.join());
+                        }
+                        return result;
+                    }
+                });
+    }
+
+    /**
+     * Applies {@code f} to every UI and combines the results with
+     * {@code merge}.
+     *
+     * @throws IllegalStateException
+     *             if the calling thread holds a session lock.
+     */
+    public <R> R reduce(Function<? super Query<Component>, R> f, R identity,
+            BinaryOperator<R> merge) {
+        R result = identity;
+        for (R r : map(f)) {
+            result = merge.apply(result, r);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the total size of the queries returned by {@code f} for every
+     * UI.
+     *
+     * @throws IllegalStateException
+     *             if the calling thread holds a session lock.
+     */
+    public int count(
+            final Function<? super Query<Component>, ? extends AbstractQuery<?, ?>> f) {
+        return reduce(new Function<Query<Component>, Integer>() {
+            @Override
+            public Integer apply(Query<Component> q) {
+                return f.apply(q).size();
+            }
+        }, 0, new BinaryOperator<Integer>() {
+            @Override
+            public Integer apply(Integer a, Integer b) {
+                return a + b;
+            }
+        });
+    }
+
+    /**
+     * Performs {@code action} in every UI, for instance to manipulate the
+     * components of all the UIs.
+     *
+     * @throws IllegalStateException
+     *             if the calling thread holds a session lock.
+     */
+    public void forEach(final Consumer<? super Query<Component>> action) {
+        map(new Function<Query<Component>, Void>() {
+            @Override
+            public Void apply(Query<Component> q) {
+                action.accept(q);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Applies {@code f} to every UI of {@code session} while holding the
+     * session lock.
+     */
+    private static <R> List<R> evaluate(VaadinSession session,
+            final Function<? super UI, R> f) {
+        final List<R> result = new ArrayList<R>();
+        session.accessSynchronously(new Runnable() {
+            @Override
+            public void run() {
+                for (UI ui : session.getUIs()) {
+                    java.util.Map<Class<?>, CurrentInstance> old = CurrentInstance
+                            .setCurrent(ui);
+                    try {
+                        result.add(f.apply(ui));
+                    } finally {
+                        CurrentInstance.restoreInstances(old);
+                    }
+                }
+            }
+        });
+        return result;
+    }
+
+    private static void checkNoSessionLocked() {
+        VaadinSession current = VaadinSession.getCurrent();
+        if (current != null && current.hasLock()) {
+            throw new IllegalStateException(
+                    "Cannot wait for other sessions while holding a session lock");
+        }
+    }
+
+    private Executor executor() {
+        return executor != null ? executor : Util.executor();
+    }
+}
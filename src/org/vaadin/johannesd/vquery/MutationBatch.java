@@ -0,0 +1,277 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+import com.vaadin.ui.Component;
+import com.vaadin.ui.Field;
+import com.vaadin.ui.UI;
+
+/**
+ * Defers the changes made through vQuery mutators in a UI, applying them once
+ * per round-trip.
+ * <p>
+ * When a batch is enabled for a UI, mutators such as
+ * {@link AbstractQuery#addStyleName(String) addStyleName},
+ * {@link AbstractQuery#setVisible(boolean) setVisible} and
+ * {@link FieldQuery#setRequired(boolean) setRequired} only record the intended
+ * final state of each component. The recorded changes are coalesced, so that
+ * adding and then removing a style name cancels out, and on flush only the
+ * changes that differ from the current state of a component are applied. The
+ * components are therefore marked dirty at most once per round-trip.
+ * <p>
+ * The batch is flushed with {@link UI#access(Runnable)}, which runs pending
+ * tasks just before the response is written, or when a background thread
+ * releases the session lock. If the UI is not attached to a session,
+ * {@link #flush()} must be called explicitly. Note that reading the state of
+ * a component, including with the property filters of a query, returns the
+ * state before any pending changes.
+ *
+ * @author Johannes Dahlström
+ */
+public class MutationBatch implements Serializable {
+
+    /**
+     * The coalesced pending changes of a single component.
+     */
+    private static class Changes implements Serializable {
+
+        /*
+         * The style name set with setStyleName, or null if not set.
+         */
+        String styleName;
+
+        /*
+         * Style names added (true) or removed (false) after styleName.
+         */
+        final LinkedHashMap<String, Boolean> styles = new LinkedHashMap<String, Boolean>();
+
+        final LinkedHashMap<String, Object> properties = new LinkedHashMap<String, Object>();
+
+        void record(String property, Object value) {
+            switch (property) {
+            case "setStyleName":
+                styleName = value != null ? (String) value : "";
+                styles.clear();
+                break;
+            case "addStyleName":
+            case "removeStyleName":
+                // Like the component, ignore null and blank style names
+                for (String style : styleSet((String) value)) {
+                    styles.remove(style);
+                    styles.put(style, property.equals("addStyleName"));
+                }
+                break;
+            default:
+                properties.put(property, value);
+            }
+        }
+
+        boolean isEmpty() {
+            return styleName == null && styles.isEmpty()
+                    && properties.isEmpty();
+        }
+
+        /**
+         * Applies the changes to {@code c}, skipping those that would not
+         * change its state. Returns whether any change was applied.
+         */
+        boolean applyTo(Component c) {
+            boolean changed = false;
+            if (styleName != null
+                    && !styleSet(c.getStyleName()).equals(styleSet(styleName))) {
+                c.setStyleName(styleName);
+                changed = true;
+            }
+            for (java.util.Map.Entry<String, Boolean> e : styles.entrySet()) {
+                String style = e.getKey();
+                boolean present = styleSet(c.getStyleName()).contains(style);
+                if (e.getValue() && !present) {
+                    c.addStyleName(style);
+                    changed = true;
+                } else if (!e.getValue() && present) {
+                    c.removeStyleName(style);
+                    changed = true;
+                }
+            }
+            for (java.util.Map.Entry<String, Object> e : properties.entrySet()) {
+                changed |= set(c, e.getKey(), e.getValue());
+            }
+            return changed;
+        }
+
+        private static boolean set(Component c, String property, Object value) {
+            switch (property) {
+            case "primaryStyleName":
+                if (value == null || value.equals(c.getPrimaryStyleName())) {
+                    return false;
+                }
+                c.setPrimaryStyleName((String) value);
+                return true;
+            case "visible":
+                if (value.equals(c.isVisible())) {
+                    return false;
+                }
+                c.setVisible((Boolean) value);
+                return true;
+            case "enabled":
+                if (value.equals(c.isEnabled())) {
+                    return false;
+                }
+                c.setEnabled((Boolean) value);
+                return true;
+            case "readOnly":
+                if (value.equals(c.isReadOnly())) {
+                    return false;
+                }
+                c.setReadOnly((Boolean) value);
+                return true;
+            case "required":
+                Field<?> f = (Field<?>) c;
+                if (value.equals(f.isRequired())) {
+                    return false;
+                }
+                f.setRequired((Boolean) value);
+                ValidityCache.invalidate(f);
+                return true;
+            case "requiredError":
+                f = (Field<?>) c;
+                if (value == null ? f.getRequiredError() == null : value
+                        .equals(f.getRequiredError())) {
+                    return false;
+                }
+                f.setRequiredError((String) value);
+                return true;
+            default:
+                throw new IllegalArgumentException("Unknown property "
+                        + property);
+            }
+        }
+
+        private static java.util.Set<String> styleSet(String styleName) {
+            java.util.Set<String> set = Util.set();
+            if (styleName != null && !styleName.trim().isEmpty()) {
+                set.addAll(Arrays.asList(styleName.trim().split(" +")));
+            }
+            return set;
+        }
+    }
+
+    private final UI ui;
+    private final HierarchyTracker tracker;
+    private final LinkedHashMap<Component, Changes> pending = new LinkedHashMap<Component, Changes>();
+    private transient boolean scheduled;
+
+    private MutationBatch(UI ui, HierarchyTracker tracker) {
+        this.ui = ui;
+        this.tracker = tracker;
+    }
+
+    /**
+     * Enables deferred mutations for {@code ui}, returning the batch of the
+     * UI.
+     */
+    public static MutationBatch enable(UI ui) {
+        HierarchyTracker tracker = HierarchyTracker.track(ui);
+        if (tracker.batch == null) {
+            tracker.batch = new MutationBatch(ui, tracker);
+        }
+        return tracker.batch;
+    }
+
+    /**
+     * Disables deferred mutations for {@code ui}, first applying any pending
+     * changes.
+     */
+    public static void disable(UI ui) {
+        MutationBatch batch = get(ui);
+        if (batch != null) {
+            batch.flush();
+            batch.tracker.batch = null;
+        }
+    }
+
+    /**
+     * Returns the batch of {@code ui} or null if deferred mutations are not
+     * enabled.
+     */
+    public static MutationBatch get(UI ui) {
+        HierarchyTracker tracker = HierarchyTracker.find(ui);
+        return tracker != null ? tracker.batch : null;
+    }
+
+    /**
+     * Returns the number of components with pending changes.
+     */
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * Applies the pending changes now.
+     */
+    public void flush() {
+        scheduled = false;
+        while (!pending.isEmpty()) {
+            java.util.Map.Entry<Component, Changes> e = pending.entrySet()
+                    .iterator().next();
+            pending.remove(e.getKey());
+            if (e.getValue().applyTo(e.getKey())) {
+                tracker.changed(e.getKey());
+            }
+        }
+    }
+
+    /**
+     * Applies a single change to {@code c} immediately, unless it would not
+     * change the state of {@code c}. Returns whether the change was applied.
+     */
+    static boolean apply(Component c, String property, Object value) {
+        Changes changes = new Changes();
+        changes.record(property, value);
+        return changes.applyTo(c);
+    }
+
+    /**
+     * Records a change to be applied to {@code c} on the next flush.
+     */
+    void record(Component c, String property, Object value) {
+        Changes changes = pending.get(c);
+        if (changes == null) {
+            changes = new Changes();
+            changes.record(property, value);
+            if (changes.isEmpty()) {
+                return;
+            }
+            pending.put(c, changes);
+        } else {
+            changes.record(property, value);
+        }
+        if (!scheduled && ui.getSession() != null) {
+            scheduled = true;
+            ui.access(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+}
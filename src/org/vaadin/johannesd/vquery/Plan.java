@@ -0,0 +1,150 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import java.io.Serializable;
+
+import com.vaadin.ui.UI;
+
+/**
+ * An immutable description of how a query was built, starting from all the
+ * components in a UI and followed by a chain of named steps such as
+ * {@code is(TextField)} or {@code hasStyleName(amount)}. Two plans are equal
+ * if they consist of equal steps with equal arguments.
+ */
+final class Plan implements Serializable {
+
+    /**
+     * The plan of {@link VQuery#all()}.
+     */
+    static final Plan ALL = new Plan(null, "all", null);
+
+    private final Plan previous;
+    private final String step;
+    private final Object arg;
+    private final int hash;
+
+    private Plan(Plan previous, String step, Object arg) {
+        this.previous = previous;
+        this.step = step;
+        this.arg = arg;
+        hash = 31 * (31 * (previous == null ? 0 : previous.hash) + step
+                .hashCode()) + (arg == null ? 0 : arg.hashCode());
+    }
+
+    /**
+     * Returns a plan consisting of this plan followed by the given step. The
+     * argument must have value semantics.
+     */
+    Plan then(String step, Object arg) {
+        return new Plan(this, step, arg);
+    }
+
+    /**
+     * Evaluates this plan against {@code ui}.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    AbstractQuery<?, ?> execute(UI ui) {
+        if (previous == null) {
+            return VQuery.all(ui);
+        }
+        AbstractQuery q = previous.execute(ui);
+        switch (step) {
+        case "id":
+            return q.id((String) arg);
+        case "hasStyleName":
+            return q.hasStyleName((String) arg);
+        case "hasPrimaryStyleName":
+            return q.hasPrimaryStyleName((String) arg);
+        case "isVisible":
+            return q.isVisible((Boolean) arg);
+        case "isEnabled":
+            return q.isEnabled((Boolean) arg);
+        case "isReadOnly":
+            return q.isReadOnly((Boolean) arg);
+        case "isEffectivelyVisible":
+            return q.isEffectivelyVisible((Boolean) arg);
+        case "isEffectivelyEnabled":
+            return q.isEffectivelyEnabled((Boolean) arg);
+        case "isLeaf":
+            return q.isLeaf((Boolean) arg);
+        case "isAttached":
+            return q.isAttached((Boolean) arg);
+        case "is":
+            return q.is((Class) arg);
+        case "isAlso":
+            return q.isAlso((Class) arg);
+        case "isField":
+            return arg == null ? q.isField() : q.isField((Class) arg);
+        case "descendants":
+            return q.descendants();
+        case "visibleDescendants":
+            return q.visibleDescendants();
+        case "children":
+            return q.children();
+        case "parent":
+            return q.parent();
+        case "ancestors":
+            return q.ancestors();
+        case "closest":
+            return q.closest((Class) arg);
+        case "siblings":
+            return q.siblings();
+        case "next":
+            return q.next();
+        case "prev":
+            return q.prev();
+        case "nextAll":
+            return q.nextAll();
+        case "prevAll":
+            return q.prevAll();
+        case "has":
+            return q.has((Class<?>) arg);
+        default:
+            throw new IllegalStateException("Unknown step " + step);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Plan)) {
+            return false;
+        }
+        Plan that = (Plan) o;
+        return hash == that.hash
+                && step.equals(that.step)
+                && (arg == null ? that.arg == null : arg.equals(that.arg))
+                && (previous == null ? that.previous == null : previous
+                        .equals(that.previous));
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        String s = step + "("
+                + (arg instanceof Class ? ((Class<?>) arg).getSimpleName()
+                        : arg == null ? "" : arg) + ")";
+        return previous == null ? s : previous + "." + s;
+    }
+}
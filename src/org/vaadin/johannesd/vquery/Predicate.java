@@ -18,6 +18,44 @@ package org.vaadin.johannesd.vquery;
 
 import com.vaadin.ui.Component;
 
+/**
+ * A condition on components, used to filter queries.
+ * <p>
+ * Predicates can be combined with {@link #and(Predicate)},
+ * {@link #or(Predicate)} and {@link #not()}. The terms of a combined predicate
+ * are evaluated in the order that minimizes the expected cost, based on the
+ * {@link #cost() cost hints} of the terms and on their selectivity sampled at
+ * runtime. Terms should therefore not have side effects.
+ */
 public interface Predicate<T extends Component> {
     boolean apply(T c);
+
+    /**
+     * Returns the relative cost of evaluating this predicate. Defaults to
+     * {@link Predicates#DEFAULT_COST}.
+     */
+    default int cost() {
+        return Predicates.DEFAULT_COST;
+    }
+
+    /**
+     * Returns a predicate that is true when both this and {@code other} are.
+     */
+    default Predicate<T> and(Predicate<? super T> other) {
+        return Predicates.<T> and(this, other);
+    }
+
+    /**
+     * Returns a predicate that is true when this or {@code other} is.
+     */
+    default Predicate<T> or(Predicate<? super T> other) {
+        return Predicates.<T> or(this, other);
+    }
+
+    /**
+     * Returns a predicate that is true when this is false.
+     */
+    default Predicate<T> not() {
+        return Predicates.not(this);
+    }
 }
@@ -0,0 +1,483 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vaadin.ui.Component;
+import com.vaadin.ui.Field;
+import com.vaadin.ui.HasComponents;
+
+/**
+ * Factory methods for the {@link Predicate predicates} used by the built-in
+ * filters of {@link AbstractQuery}, and for combining predicates.
+ * <p>
+ * A combined predicate keeps statistics of how often each of its terms is
+ * true. Every {@link #SAMPLE_INTERVAL}th evaluation, the terms evaluated
+ * update the statistics; evaluation always short-circuits, so a term is only
+ * sampled when the terms before it did not decide the result. When the
+ * combined predicate is used in a {@link Filter}, its terms are reordered so
+ * that those with the lowest expected cost of deciding the result are
+ * evaluated first: in a conjunction, cheap terms that are often false, and
+ * in a disjunction, cheap terms that are often true. In a conjunction, the
+ * terms following an {@link #is(Class) is} predicate are never moved ahead
+ * of it, so that they may rely on the type it checks. The statistics are
+ * updated atomically, so combined predicates may be shared between threads.
+ *
+ * @author Johannes Dahlström
+ */
+public class Predicates {
+
+    /**
+     * The cost of a predicate that reads a simple property, such as the class,
+     * id or visibility of a component.
+     */
+    public static final int CHEAP = 1;
+
+    /**
+     * The cost of a predicate that scans a string, such as the style names of
+     * a component.
+     */
+    public static final int MODERATE = 4;
+
+    /**
+     * The cost of an unknown predicate.
+     */
+    public static final int DEFAULT_COST = 8;
+
+    /**
+     * The cost of a predicate that runs arbitrary user code, such as
+     * validators.
+     */
+    public static final int EXPENSIVE = 16;
+
+    /**
+     * How often a combined predicate evaluates all its terms to sample their
+     * selectivity.
+     */
+    public static final int SAMPLE_INTERVAL = 16;
+
+    private Predicates() {
+    }
+
+    /**
+     * Returns a predicate that is true when all of {@code ps} are.
+     */
+    @SafeVarargs
+    public static <T extends Component> Predicate<T> and(
+            Predicate<? super T>... ps) {
+        return new Junction<T>(true, ps);
+    }
+
+    /**
+     * Returns a predicate that is true when any of {@code ps} is.
+     */
+    @SafeVarargs
+    public static <T extends Component> Predicate<T> or(
+            Predicate<? super T>... ps) {
+        return new Junction<T>(false, ps);
+    }
+
+    /**
+     * Returns a predicate that is true when {@code p} is false.
+     */
+    public static <T extends Component> Predicate<T> not(
+            final Predicate<? super T> p) {
+        return new Negation<T>(p);
+    }
+
+    /**
+     * Returns a predicate equivalent to {@code p} with the given cost hint.
+     */
+    public static <T extends Component> Predicate<T> withCost(
+            final Predicate<? super T> p, final int cost) {
+        return new Costed<T>(p, cost);
+    }
+
+    /**
+     * Reorders the terms of {@code p}, and of any combined predicates nested
+     * in it, by their expected cost.
+     */
+    static void optimize(Predicate<?> p) {
+        if (p instanceof Junction<?>) {
+            ((Junction<?>) p).optimize();
+        } else if (p instanceof Negation<?>) {
+            optimize(((Negation<?>) p).p);
+        } else if (p instanceof Costed<?>) {
+            optimize(((Costed<?>) p).p);
+        }
+    }
+
+    /**
+     * Returns a predicate that is true for components that are instances of
+     * {@code klass}.
+     */
+    public static Predicate<Component> is(final Class<?> klass) {
+        return new TypeGuard(klass);
+    }
+
+    /**
+     * Returns a predicate that is true for components that have the given id.
+     */
+    public static Predicate<Component> id(final String id) {
+        return new Predicate<Component>() {
+            @Override
+            public boolean apply(Component c) {
+                return id.equals(c.getId());
+            }
+
+            @Override
+            public int cost() {
+                return CHEAP;
+            }
+        };
+    }
+
+    /**
+     * Returns a predicate that is true for components that have the given
+     * stylename.
+     */
+    public static Predicate<Component> hasStyleName(final String styleName) {
+        return new Predicate<Component>() {
+            @Override
+            public boolean apply(Component c) {
+                return Arrays.asList(c.getStyleName().split("\\s+")).contains(
+                        styleName);
+            }
+
+            @Override
+            public int cost() {
+                return MODERATE;
+            }
+        };
+    }
+
+    /**
+     * Returns a predicate that is true for components that have the given
+     * primary stylename.
+     */
+    public static Predicate<Component> hasPrimaryStyleName(
+            final String styleName) {
+        return new Predicate<Component>() {
+            @Override
+            public boolean apply(Component c) {
+                return c.getPrimaryStyleName().equals(styleName);
+            }
+
+            @Override
+            public int cost() {
+                return MODERATE;
+            }
+        };
+    }
+
+    /**
+     * Returns a predicate that is true for components for which
+     * {@code isVisible() == visible}.
+     */
+    public static Predicate<Component> isVisible(final boolean visible) {
+        return new Predicate<Component>() {
+            @Override
+            public boolean apply(Component c) {
+                return c.isVisible() == visible;
+            }
+
+            @Override
+            public int cost() {
+                return CHEAP;
+            }
+        };
+    }
+
+    /**
+     * Returns a predicate that is true for components for which
+     * {@code isEnabled() == enabled}.
+     */
+    public static Predicate<Component> isEnabled(final boolean enabled) {
+        return new Predicate<Component>() {
+            @Override
+            public boolean apply(Component c) {
+                return c.isEnabled() == enabled;
+            }
+
+            @Override
+            public int cost() {
+                return CHEAP;
+            }
+        };
+    }
+
+    /**
+     * Returns a predicate that is true for components for which
+     * {@code isReadOnly() == readOnly}.
+     */
+    public static Predicate<Component> isReadOnly(final boolean readOnly) {
+        return new Predicate<Component>() {
+            @Override
+            public boolean apply(Component c) {
+                return c.isReadOnly() == readOnly;
+            }
+
+            @Override
+            public int cost() {
+                return CHEAP;
+            }
+        };
+    }
+
+    /**
+     * Returns a predicate that is true for leaf components if {@code leaf} is
+     * true, and for components that have children otherwise.
+     */
+    public static Predicate<Component> isLeaf(final boolean leaf) {
+        return new Predicate<Component>() {
+            @Override
+            public boolean apply(Component c) {
+                return (c instanceof HasComponents && ((HasComponents) c)
+                        .iterator().hasNext()) != leaf;
+            }
+
+            @Override
+            public int cost() {
+                return CHEAP;
+            }
+        };
+    }
+
+    /**
+     * Returns a predicate that is true for components for which
+     * {@code isAttached() == attached}.
+     */
+    public static Predicate<Component> isAttached(final boolean attached) {
+        return new Predicate<Component>() {
+            @Override
+            public boolean apply(Component c) {
+                return c.isAttached() == attached;
+            }
+
+            @Override
+            public int cost() {
+                return CHEAP;
+            }
+        };
+    }
+
+    /**
+     * Returns a predicate that is true for fields for which
+     * {@code isValid() == valid}, using the cached validity of fields that
+     * have validation caching enabled.
+     */
+    public static Predicate<Field<?>> isValid(final boolean valid) {
+        return new Predicate<Field<?>>() {
+            @Override
+            public boolean apply(Field<?> f) {
+                return ValidityCache.isValid(f) == valid;
+            }
+
+            @Override
+            public int cost() {
+                return EXPENSIVE;
+            }
+        };
+    }
+
+    private static class TypeGuard implements Predicate<Component> {
+        final Class<?> klass;
+
+        TypeGuard(Class<?> klass) {
+            this.klass = klass;
+        }
+
+        @Override
+        public boolean apply(Component c) {
+            return klass.isAssignableFrom(c.getClass());
+        }
+
+        @Override
+        public int cost() {
+            return CHEAP;
+        }
+    }
+
+    private static class Negation<T extends Component> implements Predicate<T> {
+        final Predicate<? super T> p;
+
+        Negation(Predicate<? super T> p) {
+            this.p = p;
+        }
+
+        @Override
+        public boolean apply(T c) {
+            return !p.apply(c);
+        }
+
+        @Override
+        public int cost() {
+            return p.cost();
+        }
+    }
+
+    private static class Costed<T extends Component> implements Predicate<T> {
+        final Predicate<? super T> p;
+        final int cost;
+
+        Costed(Predicate<? super T> p, int cost) {
+            this.p = p;
+            this.cost = cost;
+        }
+
+        @Override
+        public boolean apply(T c) {
+            return p.apply(c);
+        }
+
+        @Override
+        public int cost() {
+            return cost;
+        }
+    }
+
+    /**
+     * A conjunction or disjunction of terms.
+     */
+    private static class Junction<T extends Component> implements Predicate<T> {
+
+        private static class Term<T extends Component> {
+            final Predicate<? super T> p;
+            final int cost;
+            final AtomicLong tested = new AtomicLong();
+            final AtomicLong passed = new AtomicLong();
+
+            Term(Predicate<? super T> p) {
+                this.p = p;
+                cost = p.cost();
+            }
+
+            /**
+             * The estimated probability that the term is true.
+             */
+            double selectivity() {
+                return (passed.get() + 1.0) / (tested.get() + 2.0);
+            }
+        }
+
+        private final boolean conjunction;
+        private final int cost;
+        private volatile List<Term<T>> terms;
+        private final AtomicLong evaluations = new AtomicLong();
+
+        Junction(boolean conjunction, Predicate<? super T>[] ps) {
+            this.conjunction = conjunction;
+            List<Term<T>> terms = new ArrayList<Term<T>>();
+            for (Predicate<? super T> p : ps) {
+                if (p instanceof Junction<?>
+                        && ((Junction<?>) p).conjunction == conjunction) {
+                    ((Junction<? super T>) p).addTermsTo(terms);
+                } else {
+                    terms.add(new Term<T>(p));
+                }
+            }
+            int cost = 0;
+            for (Term<T> t : terms) {
+                cost += t.cost;
+            }
+            this.cost = cost;
+            this.terms = terms;
+        }
+
+        @Override
+        public boolean apply(T c) {
+            List<Term<T>> terms = this.terms;
+            if (evaluations.getAndIncrement() % SAMPLE_INTERVAL == 0) {
+                for (Term<T> t : terms) {
+                    t.tested.incrementAndGet();
+                    boolean value = t.p.apply(c);
+                    if (value) {
+                        t.passed.incrementAndGet();
+                    }
+                    if (value != conjunction) {
+                        return !conjunction;
+                    }
+                }
+                return conjunction;
+            }
+            for (Term<T> t : terms) {
+                if (t.p.apply(c) != conjunction) {
+                    return !conjunction;
+                }
+            }
+            return conjunction;
+        }
+
+        @Override
+        public int cost() {
+            return cost;
+        }
+
+        void optimize() {
+            List<Term<T>> terms = this.terms;
+            for (Term<T> t : terms) {
+                Predicates.optimize(t.p);
+            }
+            List<Term<T>> sorted = new ArrayList<Term<T>>(terms.size());
+            boolean[] placed = new boolean[terms.size()];
+            while (sorted.size() < terms.size()) {
+                int best = -1;
+                boolean guarded = true;
+                for (int i = 0; i < terms.size(); i++) {
+                    if (placed[i]) {
+                        continue;
+                    }
+                    if (guarded
+                            && (best < 0 || rank(terms.get(i)) < rank(terms
+                                    .get(best)))) {
+                        best = i;
+                    }
+                    // Later terms of a conjunction may rely on a type guard
+                    guarded &= !conjunction
+                            || !(terms.get(i).p instanceof TypeGuard);
+                }
+                placed[best] = true;
+                sorted.add(terms.get(best));
+            }
+            this.terms = sorted;
+        }
+
+        /**
+         * Adds the terms of this junction to {@code terms}, with fresh
+         * statistics.
+         */
+        <U extends T> void addTermsTo(List<Term<U>> terms) {
+            for (Term<T> t : this.terms) {
+                terms.add(new Term<U>(t.p));
+            }
+        }
+
+        /**
+         * Returns the expected cost of evaluating {@code t} per evaluation
+         * that decides the result of the junction.
+         */
+        private double rank(Term<T> t) {
+            double decisive = conjunction ? 1 - t.selectivity() : t
+                    .selectivity();
+            return t.cost / decisive;
+        }
+    }
+}
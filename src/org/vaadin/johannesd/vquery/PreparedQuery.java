@@ -0,0 +1,505 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vaadin.ui.Component;
+import com.vaadin.ui.UI;
+
+/**
+ * A query template that is defined once and executed many times against
+ * different UIs, with {@link Param parameters} bound per execution.
+ * <p>
+ * A template is immutable and may be shared between sessions, for instance as
+ * a constant:
+ *
+ * <pre>
+ * static final Param STYLE = PreparedQuery.param(&quot;style&quot;);
+ * static final PreparedQuery&lt;TextField&gt; FIELDS = PreparedQuery.all()
+ *         .is(TextField.class).hasStyleName(STYLE).isEnabled(true);
+ *
+ * Query&lt;TextField&gt; q = FIELDS.execute(ui, &quot;amount&quot;);
+ * </pre>
+ *
+ * Consecutive filtering steps, including {@link #is(Class)}, are evaluated
+ * in a single pass over the components. The terms are ordered by their cost
+ * and by their selectivity, sampled every
+ * {@link Predicates#SAMPLE_INTERVAL} components, and the statistics are kept
+ * in the steps of the template so that every execution benefits from them.
+ * A {@link #filter(Predicate) filter} is never evaluated before an
+ * {@link #is(Class) is} step that precedes it in the template. Templates
+ * derived from a common prefix share the steps of the prefix and their
+ * statistics. The statistics of an execution are published atomically once
+ * it is complete, so a template may be executed concurrently.
+ * <p>
+ * If {@link QueryCache query caching} is enabled for the UI, each step is
+ * instead executed like the corresponding query method, reusing memoized
+ * results.
+ *
+ * @author Johannes Dahlström
+ *
+ * @param <C>
+ *            The type of the components the template selects.
+ */
+public final class PreparedQuery<C extends Component> implements Serializable {
+
+    /**
+     * A named placeholder for an argument of a template.
+     */
+    public static final class Param implements Serializable {
+
+        private final String name;
+
+        private Param(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Returns the name of this parameter.
+         */
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return ":" + name;
+        }
+    }
+
+    private static final PreparedQuery<Component> ALL = new PreparedQuery<Component>(
+            null, "all", null);
+
+    private final PreparedQuery<?> previous;
+    private final String step;
+    private final Object arg;
+
+    /*
+     * The sampled selectivity of a filtering step, accumulated over all the
+     * executions of the templates sharing the step.
+     */
+    private final AtomicLong tested = new AtomicLong();
+    private final AtomicLong passed = new AtomicLong();
+
+    private transient volatile PreparedQuery<?>[] chain;
+    private transient volatile List<Param> params;
+
+    private PreparedQuery(PreparedQuery<?> previous, String step, Object arg) {
+        this.previous = previous;
+        this.step = step;
+        this.arg = arg;
+    }
+
+    /**
+     * Returns a new parameter with the given name.
+     */
+    public static Param param(String name) {
+        return new Param(name);
+    }
+
+    /**
+     * Returns the template of all the components in a UI.
+     *
+     * @see VQuery#all()
+     */
+    public static PreparedQuery<Component> all() {
+        return ALL;
+    }
+
+    /**
+     * @see AbstractQuery#is(Class)
+     */
+    public <D extends C> PreparedQuery<D> is(Class<D> klass) {
+        return then("is", klass);
+    }
+
+    /**
+     * @see AbstractQuery#id(String)
+     */
+    public PreparedQuery<C> id(String id) {
+        return then("id", id);
+    }
+
+    public PreparedQuery<C> id(Param id) {
+        return then("id", id);
+    }
+
+    /**
+     * @see AbstractQuery#hasStyleName(String)
+     */
+    public PreparedQuery<C> hasStyleName(String styleName) {
+        return then("hasStyleName", styleName);
+    }
+
+    public PreparedQuery<C> hasStyleName(Param styleName) {
+        return then("hasStyleName", styleName);
+    }
+
+    /**
+     * @see AbstractQuery#hasPrimaryStyleName(String)
+     */
+    public PreparedQuery<C> hasPrimaryStyleName(String styleName) {
+        return then("hasPrimaryStyleName", styleName);
+    }
+
+    public PreparedQuery<C> hasPrimaryStyleName(Param styleName) {
+        return then("hasPrimaryStyleName", styleName);
+    }
+
+    /**
+     * @see AbstractQuery#isVisible(boolean)
+     */
+    public PreparedQuery<C> isVisible(boolean visible) {
+        return then("isVisible", visible);
+    }
+
+    public PreparedQuery<C> isVisible(Param visible) {
+        return then("isVisible", visible);
+    }
+
+    /**
+     * @see AbstractQuery#isEnabled(boolean)
+     */
+    public PreparedQuery<C> isEnabled(boolean enabled) {
+        return then("isEnabled", enabled);
+    }
+
+    public PreparedQuery<C> isEnabled(Param enabled) {
+        return then("isEnabled", enabled);
+    }
+
+    /**
+     * @see AbstractQuery#isReadOnly(boolean)
+     */
+    public PreparedQuery<C> isReadOnly(boolean readOnly) {
+        return then("isReadOnly", readOnly);
+    }
+
+    public PreparedQuery<C> isReadOnly(Param readOnly) {
+        return then("isReadOnly", readOnly);
+    }
+
+    /**
+     * @see AbstractQuery#filter(Predicate)
+     */
+    public PreparedQuery<C> filter(Predicate<? super C> p) {
+        return then("filter", p);
+    }
+
+    /**
+     * @see AbstractQuery#descendants()
+     */
+    public PreparedQuery<Component> descendants() {
+        return then("descendants", null);
+    }
+
+    /**
+     * @see AbstractQuery#children()
+     */
+    public PreparedQuery<Component> children() {
+        return then("children", null);
+    }
+
+    /**
+     * Returns the parameters of this template in the order of their first
+     * occurrence.
+     */
+    public List<Param> getParams() {
+        if (params == null) {
+            List<Param> params = new ArrayList<Param>();
+            for (PreparedQuery<?> p : chain()) {
+                if (p.arg instanceof Param && !params.contains(p.arg)) {
+                    params.add((Param) p.arg);
+                }
+            }
+            this.params = Collections.unmodifiableList(params);
+        }
+        return params;
+    }
+
+    /**
+     * Executes this template against {@code ui}, binding the parameters in
+     * the order returned by {@link #getParams()}.
+     *
+     * @throws IllegalArgumentException
+     *             if the number of arguments is wrong, or an argument is not
+     *             of the type expected by a step using its parameter.
+     */
+    public Query<C> execute(UI ui, Object... args) {
+        List<Param> params = getParams();
+        if (args.length != params.size()) {
+            throw new IllegalArgumentException("Expected " + params.size()
+                    + " argument(s), got " + args.length);
+        }
+        java.util.Map<String, Object> bound = new java.util.HashMap<String, Object>();
+        for (int i = 0; i < args.length; i++) {
+            bound.put(params.get(i).getName(), args[i]);
+        }
+        return execute(ui, bound);
+    }
+
+    /**
+     * Executes this template against {@code ui}, binding the parameters by
+     * their names.
+     *
+     * @throws IllegalArgumentException
+     *             if a parameter is not bound, or is bound to a value that is
+     *             not of the type expected by a step using it.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public Query<C> execute(UI ui, java.util.Map<String, ?> args) {
+        PreparedQuery<?>[] chain = chain();
+        Object[] bound = new Object[chain.length];
+        for (int i = 0; i < chain.length; i++) {
+            bound[i] = chain[i].bind(args);
+        }
+        AbstractQuery q = VQuery.all(ui);
+        if (QueryCache.get(ui) != null) {
+            for (int i = 1; i < chain.length; i++) {
+                q = chain[i].replay(q, bound[i]);
+            }
+        } else {
+            for (int i = 1; i < chain.length;) {
+                if (!chain[i].isFilter()) {
+                    q = chain[i].replay(q, bound[i]);
+                    i++;
+                    continue;
+                }
+                int end = i;
+                while (end < chain.length && chain[end].isFilter()) {
+                    end++;
+                }
+                q = new Query<Component>(filter(q.get(), chain, bound, i, end));
+                i = end;
+            }
+        }
+        return (Query<C>) q;
+    }
+
+    @Override
+    public String toString() {
+        String s = step + "("
+                + (arg instanceof Class ? ((Class<?>) arg).getSimpleName()
+                        : arg == null ? "" : arg) + ")";
+        return previous == null ? s : previous + "." + s;
+    }
+
+    private <D extends Component> PreparedQuery<D> then(String step, Object arg) {
+        return new PreparedQuery<D>(this, step, arg);
+    }
+
+    /**
+     * Returns the steps from the root to this step.
+     */
+    private PreparedQuery<?>[] chain() {
+        if (chain == null) {
+            List<PreparedQuery<?>> steps = new ArrayList<PreparedQuery<?>>();
+            for (PreparedQuery<?> p = this; p != null; p = p.previous) {
+                steps.add(p);
+            }
+            Collections.reverse(steps);
+            chain = steps.toArray(new PreparedQuery<?>[steps.size()]);
+        }
+        return chain;
+    }
+
+    private Object bind(java.util.Map<String, ?> args) {
+        if (!(arg instanceof Param)) {
+            return arg;
+        }
+        String name = ((Param) arg).getName();
+        if (!args.containsKey(name)) {
+            throw new IllegalArgumentException("Parameter " + name
+                    + " is not bound");
+        }
+        Object value = args.get(name);
+        Class<?> type = argType();
+        if (value == null ? type == Boolean.class : !type.isInstance(value)) {
+            throw new IllegalArgumentException("Parameter " + name + " of "
+                    + step + " must be a " + type.getSimpleName() + ", got "
+                    + (value == null ? "null" : value.getClass()
+                            .getSimpleName()));
+        }
+        return value;
+    }
+
+    /**
+     * Returns the type of the argument of this step.
+     */
+    private Class<?> argType() {
+        switch (step) {
+        case "id":
+        case "hasStyleName":
+        case "hasPrimaryStyleName":
+            return String.class;
+        case "isVisible":
+        case "isEnabled":
+        case "isReadOnly":
+            return Boolean.class;
+        default:
+            throw new IllegalStateException("Step " + step
+                    + " takes no parameter");
+        }
+    }
+
+    private boolean isFilter() {
+        return !step.equals("all") && !step.equals("descendants")
+                && !step.equals("children");
+    }
+
+    @SuppressWarnings("unchecked")
+    private Predicate<Component> predicate(Object value) {
+        switch (step) {
+        case "is":
+            return Predicates.is((Class<?>) value);
+        case "id":
+            return Predicates.id((String) value);
+        case "hasStyleName":
+            return Predicates.hasStyleName((String) value);
+        case "hasPrimaryStyleName":
+            return Predicates.hasPrimaryStyleName((String) value);
+        case "isVisible":
+            return Predicates.isVisible((Boolean) value);
+        case "isEnabled":
+            return Predicates.isEnabled((Boolean) value);
+        case "isReadOnly":
+            return Predicates.isReadOnly((Boolean) value);
+        case "filter":
+            return (Predicate<Component>) value;
+        default:
+            throw new IllegalStateException("Unknown step " + step);
+        }
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private AbstractQuery<?, ?> replay(AbstractQuery q, Object value) {
+        switch (step) {
+        case "is":
+            return q.is((Class) value);
+        case "id":
+            return q.id((String) value);
+        case "hasStyleName":
+            return q.hasStyleName((String) value);
+        case "hasPrimaryStyleName":
+            return q.hasPrimaryStyleName((String) value);
+        case "isVisible":
+            return q.isVisible((Boolean) value);
+        case "isEnabled":
+            return q.isEnabled((Boolean) value);
+        case "isReadOnly":
+            return q.isReadOnly((Boolean) value);
+        case "filter":
+            return q.filter((Predicate) value);
+        case "descendants":
+            return q.descendants();
+        case "children":
+            return q.children();
+        default:
+            throw new IllegalStateException("Unknown step " + step);
+        }
+    }
+
+    /**
+     * Returns the components of {@code cs} that satisfy the filtering steps
+     * {@code chain[from]} to {@code chain[to - 1]}, evaluating the steps in
+     * the order of their expected cost per decisive evaluation. A
+     * {@link #filter(Predicate) filter} step is never evaluated before an
+     * {@link #is(Class) is} step preceding it in the chain, as its predicate
+     * may rely on the type. Every {@link Predicates#SAMPLE_INTERVAL}th
+     * component is used to sample the selectivity of the steps evaluated for
+     * it.
+     */
+    private static Set<Component> filter(Set<Component> cs,
+            PreparedQuery<?>[] chain, Object[] bound, int from, int to) {
+        List<PreparedQuery<?>> steps = new ArrayList<PreparedQuery<?>>();
+        List<Predicate<Component>> predicates = new ArrayList<Predicate<Component>>();
+        List<Double> ranks = new ArrayList<Double>();
+        for (int i = from; i < to; i++) {
+            Predicate<Component> p = chain[i].predicate(bound[i]);
+            steps.add(chain[i]);
+            predicates.add(p);
+            ranks.add(chain[i].rank(p));
+        }
+        List<Predicate<Component>> ordered = new ArrayList<Predicate<Component>>();
+        List<PreparedQuery<?>> orderedSteps = new ArrayList<PreparedQuery<?>>();
+        boolean[] placed = new boolean[steps.size()];
+        while (ordered.size() < steps.size()) {
+            int best = -1;
+            boolean guarded = true;
+            for (int i = 0; i < steps.size(); i++) {
+                if (placed[i]) {
+                    continue;
+                }
+                // A filter after an unplaced type guard may depend on it
+                boolean eligible = guarded
+                        || !steps.get(i).step.equals("filter");
+                if (eligible && (best < 0 || ranks.get(i) < ranks.get(best))) {
+                    best = i;
+                }
+                guarded &= !steps.get(i).step.equals("is");
+            }
+            placed[best] = true;
+            ordered.add(predicates.get(best));
+            orderedSteps.add(steps.get(best));
+        }
+
+        Set<Component> result = Util.set();
+        int n = ordered.size();
+        long[] tested = new long[n];
+        long[] passed = new long[n];
+        int evaluated = 0;
+        for (Component c : cs) {
+            boolean matches = true;
+            if (evaluated++ % Predicates.SAMPLE_INTERVAL == 0) {
+                for (int i = 0; i < n && matches; i++) {
+                    tested[i]++;
+                    matches = ordered.get(i).apply(c);
+                    if (matches) {
+                        passed[i]++;
+                    }
+                }
+            } else {
+                for (int i = 0; i < n && matches; i++) {
+                    matches = ordered.get(i).apply(c);
+                }
+            }
+            if (matches) {
+                result.add(c);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            orderedSteps.get(i).tested.addAndGet(tested[i]);
+            orderedSteps.get(i).passed.addAndGet(passed[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the expected cost of evaluating this step per evaluation that
+     * rejects a component.
+     */
+    private double rank(Predicate<Component> p) {
+        double selectivity = (passed.get() + 1.0) / (tested.get() + 2.0);
+        return p.cost() / (1 - selectivity);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import com.vaadin.ui.Component;
+import com.vaadin.ui.UI;
+
+/**
+ * A bounded per-UI cache of query results.
+ * <p>
+ * When enabled for a UI, {@link VQuery#all()} and the queries derived from it
+ * by the built-in structural and property filters ({@code is}, {@code id},
+ * {@code hasStyleName}, {@code isVisible}, {@code children} and so on) are
+ * memoized. A chain such as
+ * {@code $().is(TextField.class).hasStyleName("amount")} is then evaluated only
+ * once until the {@link HierarchyTracker version} of the UI changes. Queries
+ * using custom predicates or filters, or value-dependent filters such as
+ * {@link FieldQuery#isValid(boolean)}, are never memoized.
+ * <p>
+ * Component ids are assumed not to change while the component is attached.
+ * Style names, visibility and enabled state should only be changed through
+ * vQuery, or {@link HierarchyTracker#touch()} called afterwards.
+ *
+ * @author Johannes Dahlström
+ */
+public class QueryCache implements Serializable {
+
+    /**
+     * The default maximum number of cached results per UI.
+     */
+    public static final int DEFAULT_SIZE = 64;
+
+    private final HierarchyTracker tracker;
+    private final int maxSize;
+    private long version;
+
+    /*
+     * Not serialized; the cache starts empty after deserialization.
+     */
+    private transient LinkedHashMap<Plan, Set<?>> entries;
+
+    private QueryCache(HierarchyTracker tracker, int maxSize) {
+        this.tracker = tracker;
+        this.maxSize = maxSize;
+        version = tracker.getVersion();
+    }
+
+    /**
+     * Enables query memoization for {@code ui} with the default cache size.
+     */
+    public static QueryCache enable(UI ui) {
+        return enable(ui, DEFAULT_SIZE);
+    }
+
+    /**
+     * Enables query memoization for {@code ui}, retaining at most
+     * {@code maxSize} results.
+     */
+    public static QueryCache enable(UI ui, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Size must be positive");
+        }
+        HierarchyTracker tracker = HierarchyTracker.track(ui);
+        tracker.cache = new QueryCache(tracker, maxSize);
+        return tracker.cache;
+    }
+
+    /**
+     * Disables query memoization for {@code ui}, discarding any cached
+     * results.
+     */
+    public static void disable(UI ui) {
+        HierarchyTracker tracker = HierarchyTracker.find(ui);
+        if (tracker != null) {
+            tracker.cache = null;
+        }
+    }
+
+    /**
+     * Returns the query cache of {@code ui} or null if memoization is not
+     * enabled.
+     */
+    public static QueryCache get(UI ui) {
+        HierarchyTracker tracker = HierarchyTracker.find(ui);
+        return tracker != null ? tracker.cache : null;
+    }
+
+    /**
+     * Returns the number of results currently cached.
+     */
+    public int size() {
+        validate();
+        return entries().size();
+    }
+
+    /**
+     * Discards all the cached results.
+     */
+    public void clear() {
+        entries().clear();
+    }
+
+    /**
+     * Returns the current version of the hierarchy, discarding the cached
+     * results if it has changed.
+     */
+    long validate() {
+        if (version != tracker.getVersion()) {
+            entries().clear();
+            version = tracker.getVersion();
+        }
+        return version;
+    }
+
+    /**
+     * Returns a memoized query representing all the components in
+     * {@code ui}.
+     */
+    Query<Component> all(UI ui) {
+        long v = validate();
+        Set<Component> result = get(Plan.ALL);
+        if (result == null) {
+            Query<Component> $ui = new Query<Component>(ui);
+            result = put(Plan.ALL, $ui.descendants().with($ui).get());
+        }
+        return new Query<Component>(result).memoize(this, Plan.ALL, v);
+    }
+
+    /**
+     * Returns the cached result of {@code plan} or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    <C> Set<C> get(Plan plan) {
+        return (Set<C>) entries().get(plan);
+    }
+
+    /**
+     * Caches {@code result} as the result of {@code plan}, returning an
+     * immutable view of it.
+     */
+    <C> Set<C> put(Plan plan, Set<C> result) {
+        Set<C> frozen = Util.freeze(result);
+        entries().put(plan, frozen);
+        return frozen;
+    }
+
+    private LinkedHashMap<Plan, Set<?>> entries() {
+        if (entries == null) {
+            entries = new LinkedHashMap<Plan, Set<?>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        java.util.Map.Entry<Plan, Set<?>> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+        return entries;
+    }
+}
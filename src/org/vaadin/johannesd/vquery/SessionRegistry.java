@@ -0,0 +1,98 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.vaadin.server.ServiceException;
+import com.vaadin.server.SessionDestroyEvent;
+import com.vaadin.server.SessionDestroyListener;
+import com.vaadin.server.SessionInitEvent;
+import com.vaadin.server.SessionInitListener;
+import com.vaadin.server.VaadinService;
+import com.vaadin.server.VaadinSession;
+
+/**
+ * Keeps track of the open sessions of a {@link VaadinService}, which does not
+ * otherwise provide access to them. A registry must be installed before the
+ * sessions to be tracked are created, typically in
+ * {@code VaadinServlet.servletInitialized()}.
+ *
+ * @see VQuery#inService(VaadinService)
+ *
+ * @author Johannes Dahlström
+ */
+public class SessionRegistry implements SessionInitListener,
+        SessionDestroyListener {
+
+    private static final java.util.Map<VaadinService, SessionRegistry> registries = new WeakHashMap<VaadinService, SessionRegistry>();
+
+    private final Set<VaadinSession> sessions = Collections
+            .newSetFromMap(new ConcurrentHashMap<VaadinSession, Boolean>());
+
+    private SessionRegistry() {
+    }
+
+    /**
+     * Installs a session registry to {@code service} unless it already has
+     * one, and returns the registry.
+     */
+    public static SessionRegistry install(VaadinService service) {
+        synchronized (registries) {
+            SessionRegistry registry = registries.get(service);
+            if (registry == null) {
+                registry = new SessionRegistry();
+                service.addSessionInitListener(registry);
+                service.addSessionDestroyListener(registry);
+                registries.put(service, registry);
+            }
+            return registry;
+        }
+    }
+
+    /**
+     * Returns the session registry of {@code service} or null if none is
+     * installed.
+     */
+    public static SessionRegistry get(VaadinService service) {
+        synchronized (registries) {
+            return registries.get(service);
+        }
+    }
+
+    /**
+     * Returns a snapshot of the currently open sessions.
+     */
+    public Collection<VaadinSession> getSessions() {
+        return new ArrayList<VaadinSession>(sessions);
+    }
+
+    @Override
+    public void sessionInit(SessionInitEvent event) throws ServiceException {
+        sessions.add(event.getSession());
+    }
+
+    @Override
+    public void sessionDestroy(SessionDestroyEvent event) {
+        sessions.remove(event.getSession());
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import com.vaadin.ui.Component;
+import com.vaadin.ui.HasComponents;
+
+/**
+ * A {@link Spliterator} yielding the descendants of a set of components in
+ * pre-order without materializing them first. Splitting hands off whole
+ * subtrees, so that independent branches of the hierarchy can be traversed
+ * concurrently.
+ * <p>
+ * The number of descendants is not known in advance, so like
+ * {@link java.util.Spliterators.AbstractSpliterator}, the spliterator starts
+ * from an unknown size and halves its estimate on each split. Once no pending
+ * component has children left to visit, the size is exact and the
+ * spliterator reports {@link #SIZED}.
+ * <p>
+ * The hierarchy must not be modified while it is being traversed.
+ */
+class SubtreeSpliterator implements Spliterator<Component> {
+
+    /**
+     * A component that is yet to be yielded, along with its descendants if
+     * {@code descend} is true.
+     */
+    private static class Entry {
+        final Component c;
+        final boolean descend;
+
+        Entry(Component c, boolean descend) {
+            this.c = c;
+            this.descend = descend;
+        }
+    }
+
+    /*
+     * The pending entries in encounter order.
+     */
+    private final Deque<Entry> pending;
+
+    private long estimate;
+    private boolean sized;
+
+    /**
+     * Constructs a spliterator yielding the descendants of {@code roots}. A
+     * root that is a descendant of another root is not traversed twice.
+     */
+    SubtreeSpliterator(Collection<? extends Component> roots) {
+        pending = new ArrayDeque<Entry>();
+        for (Component root : roots) {
+            if (!hasAncestorIn(root, roots)) {
+                for (Component child : children(root)) {
+                    pending.add(new Entry(child, true));
+                }
+            }
+        }
+        estimate = Long.MAX_VALUE;
+        sized = isClosed(pending);
+    }
+
+    private SubtreeSpliterator(Deque<Entry> pending, long estimate) {
+        this.pending = pending;
+        this.estimate = estimate;
+        sized = isClosed(pending);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Component> action) {
+        Entry e = pending.pollFirst();
+        if (e == null) {
+            return false;
+        }
+        if (e.descend) {
+            List<Component> children = children(e.c);
+            for (int i = children.size() - 1; i >= 0; i--) {
+                pending.addFirst(new Entry(children.get(i), true));
+            }
+        }
+        action.accept(e.c);
+        return true;
+    }
+
+    @Override
+    public Spliterator<Component> trySplit() {
+        Deque<Entry> prefix = new ArrayDeque<Entry>();
+        if (pending.size() > 1) {
+            for (int n = pending.size() / 2; n > 0; n--) {
+                prefix.add(pending.pollFirst());
+            }
+        } else if (pending.size() == 1 && pending.peekFirst().descend) {
+            // Yield the single subtree root in the prefix, followed by the
+            // first half of its children
+            Entry e = pending.peekFirst();
+            List<Component> children = children(e.c);
+            if (children.isEmpty()) {
+                return null;
+            }
+            pending.pollFirst();
+            prefix.add(new Entry(e.c, false));
+            int half = children.size() / 2;
+            for (int i = 0; i < children.size(); i++) {
+                (i < half ? prefix : pending).add(new Entry(children.get(i),
+                        true));
+            }
+        } else {
+            return null;
+        }
+        estimate >>>= 1;
+        sized = isClosed(pending);
+        return new SubtreeSpliterator(prefix, estimate);
+    }
+
+    @Override
+    public long estimateSize() {
+        return sized || pending.isEmpty() ? pending.size() : estimate;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | DISTINCT | NONNULL | (sized ? SIZED | SUBSIZED : 0);
+    }
+
+    /**
+     * Returns whether none of {@code entries} has children left to visit, in
+     * which case they are exactly the components still to be yielded.
+     */
+    private static boolean isClosed(Collection<Entry> entries) {
+        for (Entry e : entries) {
+            if (e.descend && e.c instanceof HasComponents
+                    && ((HasComponents) e.c).iterator().hasNext()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<Component> children(Component c) {
+        List<Component> result = new ArrayList<Component>();
+        if (c instanceof HasComponents) {
+            for (Component child : (HasComponents) c) {
+                result.add(child);
+            }
+        }
+        return result;
+    }
+
+    private static boolean hasAncestorIn(Component c,
+            Collection<? extends Component> cs) {
+        for (Component p = c.getParent(); p != null; p = p.getParent()) {
+            if (cs.contains(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
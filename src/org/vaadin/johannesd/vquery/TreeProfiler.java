@@ -0,0 +1,179 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import com.vaadin.server.VaadinService;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.Component;
+import com.vaadin.ui.HasComponents;
+import com.vaadin.ui.UI;
+
+/**
+ * Gathers {@link TreeStatistics statistics} of component trees for capacity
+ * planning: the number of components, the maximum depth, the distribution of
+ * fan-out, a histogram of the concrete classes and an estimate of the memory
+ * used by the components.
+ * <p>
+ * The size estimate assumes a 64-bit JVM with compressed references: a 12
+ * byte object header, 4 byte references and 8 byte alignment. It is computed
+ * from the declared fields of the component and shared state classes.
+ *
+ * @author Johannes Dahlström
+ */
+public class TreeProfiler {
+
+    private static final ConcurrentHashMap<Class<?>, Long> shallowSizes = new ConcurrentHashMap<Class<?>, Long>();
+
+    private TreeProfiler() {
+    }
+
+    /**
+     * Returns the statistics of the component tree of {@code ui}. The caller
+     * must hold the session lock.
+     */
+    public static TreeStatistics profile(UI ui) {
+        TreeStatistics stats = new TreeStatistics(ui.getClass().getName(),
+                System.currentTimeMillis());
+        java.util.Map<Component, Integer> depths = new IdentityHashMap<Component, Integer>();
+        java.util.Map<Component, Integer> fanOut = new IdentityHashMap<Component, Integer>();
+        depths.put(ui, 0);
+        fanOut.put(ui, 0);
+        stats.add(ui.getClass().getName(), 0, estimateSize(ui));
+        // The descendants are in pre-order, so every parent precedes its
+        // children and has its depth recorded by the time they are visited.
+        for (Component c : Map.descendants.apply(Collections.singleton(ui))) {
+            HasComponents parent = c.getParent();
+            int depth = depths.get(parent) + 1;
+            depths.put(c, depth);
+            fanOut.put(parent, fanOut.get(parent) + 1);
+            if (c instanceof HasComponents) {
+                fanOut.put(c, 0);
+            }
+            stats.add(c.getClass().getName(), depth, estimateSize(c));
+        }
+        for (int children : fanOut.values()) {
+            stats.addContainer(children);
+        }
+        return stats;
+    }
+
+    /**
+     * Profiles every UI of a random {@code fraction} of {@code sessions},
+     * locking one session at a time on the background executor.
+     *
+     * @throws IllegalStateException
+     *             if the calling thread holds a session lock.
+     */
+    public static List<TreeStatistics> sample(
+            Collection<VaadinSession> sessions, double fraction, Random random) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("Fraction must be in [0, 1]");
+        }
+        List<VaadinSession> sampled = new ArrayList<VaadinSession>();
+        for (VaadinSession session : sessions) {
+            if (random.nextDouble() < fraction) {
+                sampled.add(session);
+            }
+        }
+        return VQuery.inSessions(sampled).mapUIs(
+                new Function<UI, TreeStatistics>() {
+                    @Override
+                    public TreeStatistics apply(UI ui) {
+                        return profile(ui);
+                    }
+                });
+    }
+
+    /**
+     * Profiles every UI of a random {@code fraction} of the open sessions of
+     * {@code service}. A {@link SessionRegistry} must have been installed to
+     * the service.
+     *
+     * @see #sample(Collection, double, Random)
+     */
+    public static List<TreeStatistics> sample(VaadinService service,
+            double fraction) {
+        SessionRegistry registry = SessionRegistry.get(service);
+        if (registry == null) {
+            throw new IllegalStateException(
+                    "No SessionRegistry installed to the service");
+        }
+        return sample(registry.getSessions(), fraction, new Random());
+    }
+
+    /**
+     * Writes {@code stats} to {@code out} as JSON, one UI per line.
+     */
+    public static void export(Collection<TreeStatistics> stats, Appendable out)
+            throws IOException {
+        for (TreeStatistics s : stats) {
+            s.export(out);
+        }
+    }
+
+    /**
+     * Returns the estimated shallow size of {@code c} and its shared state.
+     */
+    static long estimateSize(Component c) {
+        long size = shallowSize(c.getClass());
+        if (c.getStateType() != null) {
+            size += shallowSize(c.getStateType());
+        }
+        return size;
+    }
+
+    private static long shallowSize(Class<?> type) {
+        Long size = shallowSizes.get(type);
+        if (size == null) {
+            long bytes = 12;
+            for (Class<?> t = type; t != null; t = t.getSuperclass()) {
+                for (Field f : t.getDeclaredFields()) {
+                    if (!Modifier.isStatic(f.getModifiers())) {
+                        bytes += fieldSize(f.getType());
+                    }
+                }
+            }
+            size = (bytes + 7) / 8 * 8;
+            shallowSizes.put(type, size);
+        }
+        return size;
+    }
+
+    private static int fieldSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        } else if (type == short.class || type == char.class) {
+            return 2;
+        } else if (type == byte.class || type == boolean.class) {
+            return 1;
+        } else {
+            return 4;
+        }
+    }
+}
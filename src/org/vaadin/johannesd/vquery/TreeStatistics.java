@@ -0,0 +1,173 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Statistics of the component tree of a single UI, as gathered by
+ * {@link TreeProfiler}.
+ *
+ * @author Johannes Dahlström
+ */
+public class TreeStatistics implements Serializable {
+
+    private final String uiClass;
+    private final long timestamp;
+    private int componentCount;
+    private int maxDepth;
+    private long estimatedSize;
+    private final SortedMap<Integer, Integer> fanOut = new TreeMap<Integer, Integer>();
+    private final SortedMap<String, Integer> classes = new TreeMap<String, Integer>();
+
+    TreeStatistics(String uiClass, long timestamp) {
+        this.uiClass = uiClass;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Returns the name of the class of the UI.
+     */
+    public String getUIClass() {
+        return uiClass;
+    }
+
+    /**
+     * Returns the time the statistics were gathered, in milliseconds since
+     * the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the number of components in the tree, including the UI.
+     */
+    public int getComponentCount() {
+        return componentCount;
+    }
+
+    /**
+     * Returns the depth of the deepest component, the UI being at depth 0.
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Returns the number of containers by their number of children.
+     */
+    public SortedMap<Integer, Integer> getFanOut() {
+        return Collections.unmodifiableSortedMap(fanOut);
+    }
+
+    /**
+     * Returns the number of components by their concrete class name.
+     */
+    public SortedMap<String, Integer> getClassHistogram() {
+        return Collections.unmodifiableSortedMap(classes);
+    }
+
+    /**
+     * Returns the estimated size of the components and their shared states
+     * in bytes. The estimate covers the objects themselves, not the strings,
+     * collections and listeners they refer to.
+     */
+    public long getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    void add(String className, int depth, long size) {
+        componentCount++;
+        maxDepth = Math.max(maxDepth, depth);
+        estimatedSize += size;
+        increment(classes, className);
+    }
+
+    void addContainer(int children) {
+        increment(fanOut, children);
+    }
+
+    /**
+     * Writes the statistics to {@code out} as a single line of JSON.
+     */
+    public void export(Appendable out) throws IOException {
+        out.append("{\"ui\":");
+        exportString(uiClass, out);
+        out.append(",\"timestamp\":").append(String.valueOf(timestamp))
+                .append(",\"components\":")
+                .append(String.valueOf(componentCount))
+                .append(",\"maxDepth\":").append(String.valueOf(maxDepth))
+                .append(",\"estimatedSize\":")
+                .append(String.valueOf(estimatedSize)).append(",\"fanOut\":");
+        exportMap(fanOut, out);
+        out.append(",\"classes\":");
+        exportMap(classes, out);
+        out.append("}\n");
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            export(sb);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return sb.toString().trim();
+    }
+
+    private static void exportMap(SortedMap<?, Integer> map, Appendable out)
+            throws IOException {
+        out.append('{');
+        boolean first = true;
+        for (java.util.Map.Entry<?, Integer> e : map.entrySet()) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            exportString(String.valueOf(e.getKey()), out);
+            out.append(':').append(String.valueOf(e.getValue()));
+        }
+        out.append('}');
+    }
+
+    private static void exportString(String s, Appendable out)
+            throws IOException {
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    private static <K> void increment(SortedMap<K, Integer> map, K key) {
+        Integer count = map.get(key);
+        map.put(key, count != null ? count + 1 : 1);
+    }
+}
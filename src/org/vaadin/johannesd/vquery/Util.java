@@ -16,12 +16,46 @@
 
 package org.vaadin.johannesd.vquery;
 
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import com.vaadin.server.ServiceDestroyEvent;
+import com.vaadin.server.ServiceDestroyListener;
+import com.vaadin.server.VaadinService;
+import com.vaadin.ui.Component;
 
 public class Util {
 
+    /**
+     * The maximum size of sets stored as a linearly scanned array.
+     */
+    static final int SMALL_SIZE = 8;
+
+    private static ExecutorService executor;
+
+    private static ScheduledExecutorService scheduler;
+
+    /*
+     * The services the pools have been used from; the pools are shut down
+     * when all of them have been destroyed.
+     */
+    private static final Set<VaadinService> services = Collections
+            .newSetFromMap(new IdentityHashMap<VaadinService, Boolean>());
+
     public static <T> Set<T> set() {
         return new LinkedHashSet<T>();
     }
@@ -41,6 +75,138 @@ public class Util {
         return set;
     }
 
+    /**
+     * Returns an unmodifiable view of {@code set}. Queries constructed from
+     * the returned set share it instead of copying it; the caller must not
+     * modify {@code set} afterwards.
+     */
+    public static <T> Set<T> freeze(Set<T> set) {
+        if (set instanceof Immutable<?>) {
+            return set;
+        }
+        return set.size() <= SMALL_SIZE ? compact(set) : new Frozen<T>(set);
+    }
+
+    /**
+     * Returns an immutable set of the distinct elements of {@code cs} in
+     * iteration order. Empty and singleton sets, and sets of at most
+     * {@link #SMALL_SIZE} elements, are stored without hashing.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> Set<T> compact(Collection<? extends T> cs) {
+        if (cs instanceof Immutable<?>) {
+            return (Set<T>) cs;
+        }
+        switch (cs.size()) {
+        case 0:
+            return (Set<T>) Small.EMPTY;
+        case 1:
+            return new Single<T>(cs.iterator().next());
+        }
+        if (cs.size() > SMALL_SIZE) {
+            return new Frozen<T>(new LinkedHashSet<T>(cs));
+        }
+        Object[] elements = new Object[cs.size()];
+        int size = 0;
+        distinct: for (T t : cs) {
+            for (int i = 0; i < size; i++) {
+                if (Objects.equals(elements[i], t)) {
+                    continue distinct;
+                }
+            }
+            elements[size++] = t;
+        }
+        return size == 1 ? new Single<T>((T) elements[0]) : new Small<T>(
+                size == elements.length ? elements : Arrays.copyOf(elements,
+                        size));
+    }
+
+    /**
+     * Returns the shared executor used for background query evaluation, a
+     * pool of daemon threads with one thread per processor. The pool is shut
+     * down once the services it has been used from are destroyed.
+     */
+    static synchronized Executor executor() {
+        bindToCurrentService();
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime()
+                    .availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "vquery-background");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Returns the shared scheduler used for delayed tasks, a single daemon
+     * thread. The scheduler is shut down like {@link #executor()}.
+     */
+    static synchronized ScheduledExecutorService scheduler() {
+        bindToCurrentService();
+        if (scheduler == null) {
+            scheduler = Executors
+                    .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "vquery-scheduler");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return scheduler;
+    }
+
+    /**
+     * Shuts down the pools when the current service, if any, is destroyed, so
+     * that their threads do not outlive a redeployed application.
+     */
+    private static void bindToCurrentService() {
+        final VaadinService service = VaadinService.getCurrent();
+        if (service != null && services.add(service)) {
+            service.addServiceDestroyListener(new ServiceDestroyListener() {
+                @Override
+                public void serviceDestroy(ServiceDestroyEvent event) {
+                    synchronized (Util.class) {
+                        services.remove(service);
+                        if (services.isEmpty()) {
+                            shutdown();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Shuts down the pools, which are recreated if used again.
+     */
+    private static void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Returns {@code c} and its descendants.
+     */
+    static Set<Component> subtree(Component c) {
+        Set<Component> result = set();
+        result.add(c);
+        result.addAll(Map.descendants.apply(Collections.singleton(c)));
+        return result;
+    }
+
     public static <T, U> U cast(T instance, Class<U> klass) {
         if (klass.isAssignableFrom(instance.getClass())) {
             return klass.cast(instance);
@@ -48,4 +214,135 @@ public class Util {
             return null;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Base class of the immutable sets shared by queries.
+     */
+    private static abstract class Immutable<T> extends AbstractSet<T>
+            implements Serializable {
+    }
+
+    /**
+     * A set of a single element.
+     */
+    private static final class Single<T> extends Immutable<T> {
+        private final T element;
+
+        Single(T element) {
+            this.element = element;
+        }
+
+        @Override
+        public Iterator<T> iterator() {
+            return Collections.singleton(element).iterator();
+        }
+
+        @Override
+        public int size() {
+            return 1;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return Objects.equals(element, o);
+        }
+    }
+
+    /**
+     * A set of at most {@link Util#SMALL_SIZE} distinct elements, scanned
+     * linearly.
+     */
+    private static final class Small<T> extends Immutable<T> {
+        static final Small<Object> EMPTY = new Small<Object>(new Object[0]);
+
+        private final Object[] elements;
+
+        Small(Object[] elements) {
+            this.elements = elements;
+        }
+
+        @Override
+        public Iterator<T> iterator() {
+            return new Iterator<T>() {
+                private int i = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return i < elements.length;
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public T next() {
+                    if (i == elements.length) {
+                        throw new NoSuchElementException();
+                    }
+                    return (T) elements[i++];
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return elements.length;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            for (Object e : elements) {
+                if (Objects.equals(e, o)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private Object readResolve() {
+            return elements.length == 0 ? EMPTY : this;
+        }
+    }
+
+    private static class Frozen<T> extends Immutable<T> {
+        private final Set<T> set;
+
+        Frozen(Set<T> set) {
+            this.set = set;
+        }
+
+        @Override
+        public Iterator<T> iterator() {
+            final Iterator<T> i = set.iterator();
+            return new Iterator<T>() {
+                @Override
+                public boolean hasNext() {
+                    return i.hasNext();
+                }
+
+                @Override
+                public T next() {
+                    return i.next();
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return set.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return set.contains(o);
+        }
+    }
+}
@@ -18,8 +18,9 @@ package org.vaadin.johannesd.vquery;
 
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedHashSet;
 
+import com.vaadin.server.VaadinService;
+import com.vaadin.server.VaadinSession;
 import com.vaadin.ui.Component;
 import com.vaadin.ui.Field;
 import com.vaadin.ui.UI;
@@ -48,20 +49,69 @@ public class VQuery {
     }
 
     public static Query<Component> all() {
-        if (UI.getCurrent() == null) {
+        UI current = UI.getCurrent();
+        if (current == null) {
             throw new IllegalStateException("UI.getCurrent() is null");
         }
-        Query<Component> ui = $((Component) UI.getCurrent());
+        return all(current);
+    }
+
+    /**
+     * Returns a query representing {@code current} and all its descendants,
+     * memoized if {@link QueryCache query caching} is enabled.
+     */
+    static Query<Component> all(UI current) {
+        QueryCache cache = QueryCache.get(current);
+        if (cache != null) {
+            return cache.all(current);
+        }
+        Query<Component> ui = $((Component) current);
         return ui.descendants().with(ui);
     }
 
+    /**
+     * Returns an asynchronous query for all the components in {@code ui},
+     * traversed in chunks without holding the session lock throughout.
+     */
+    public static AsyncQuery async(UI ui) {
+        return new AsyncQuery(ui);
+    }
+
+    /**
+     * Returns a query targeting every UI of {@code session}.
+     */
+    public static MultiUIQuery inSession(VaadinSession session) {
+        return inSessions(Arrays.asList(session));
+    }
+
+    /**
+     * Returns a query targeting every UI of the given sessions.
+     */
+    public static MultiUIQuery inSessions(Collection<VaadinSession> sessions) {
+        return new MultiUIQuery(sessions);
+    }
+
+    /**
+     * Returns a query targeting every UI of every open session of
+     * {@code service}. A {@link SessionRegistry} must have been installed to
+     * the service.
+     */
+    public static MultiUIQuery inService(VaadinService service) {
+        SessionRegistry registry = SessionRegistry.get(service);
+        if (registry == null) {
+            throw new IllegalStateException(
+                    "No SessionRegistry installed to the service");
+        }
+        return inSessions(registry.getSessions());
+    }
+
     @SafeVarargs
     public static <C extends Component> Query<C> select(C... cs) {
         return VQuery.select(Arrays.asList(cs));
     }
 
     public static <C extends Component> Query<C> select(Collection<C> cs) {
-        return new Query<C>(new LinkedHashSet<C>(cs));
+        return new Query<C>(cs);
     }
 
     public static FieldQuery<Field<?>> selectFields(Field<?>... fields) {
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.WeakHashMap;
+
+import com.vaadin.data.Property.ValueChangeEvent;
+import com.vaadin.data.Property.ValueChangeListener;
+import com.vaadin.data.Validator.InvalidValueException;
+import com.vaadin.server.AbstractClientConnector;
+import com.vaadin.ui.Field;
+
+/**
+ * Caches the result of {@link Field#isValid()} for a single field. The cached
+ * result is reused as long as the value of the field is the same object and
+ * no value change event has been fired.
+ * <p>
+ * The cache is registered as a value change listener of the field, and is
+ * therefore serialized along with it. The caches are also kept in a map by
+ * field, so that finding the cache of a field does not scan its listeners.
+ * Only fields extending {@link AbstractClientConnector} can have a validity
+ * cache.
+ *
+ * @see FieldQuery#setValidationCached(boolean)
+ */
+class ValidityCache implements ValueChangeListener {
+
+    /*
+     * Components do not override equals, so the map is keyed by identity. The
+     * keys are weak, and the caches only refer weakly to their fields, so
+     * that discarded fields can be collected.
+     */
+    private static final java.util.Map<Field<?>, ValidityCache> caches = Collections
+            .synchronizedMap(new WeakHashMap<Field<?>, ValidityCache>());
+
+    private transient WeakReference<Field<?>> field;
+    private boolean known = false;
+    private Object value;
+    private InvalidValueException error;
+
+    private ValidityCache(Field<?> field) {
+        this.field = new WeakReference<Field<?>>(field);
+    }
+
+    /**
+     * Returns the validity cache of {@code f} or null if there is none.
+     */
+    static ValidityCache find(Field<?> f) {
+        return caches.get(f);
+    }
+
+    /**
+     * Installs a validity cache to {@code f} unless it already has one.
+     */
+    static void install(Field<?> f) {
+        if (f instanceof AbstractClientConnector && find(f) == null) {
+            ValidityCache cache = new ValidityCache(f);
+            f.addValueChangeListener(cache);
+            caches.put(f, cache);
+        }
+    }
+
+    /**
+     * Removes the validity cache of {@code f}, if any.
+     */
+    static void uninstall(Field<?> f) {
+        ValidityCache cache = caches.remove(f);
+        if (cache != null) {
+            f.removeValueChangeListener(cache);
+        }
+    }
+
+    /**
+     * Discards the cached result of {@code f}, if any.
+     */
+    static void invalidate(Field<?> f) {
+        ValidityCache cache = find(f);
+        if (cache != null) {
+            cache.invalidate();
+        }
+    }
+
+    /**
+     * Returns {@code f.isValid()}, using the cached result if {@code f} has a
+     * validity cache.
+     */
+    static boolean isValid(Field<?> f) {
+        ValidityCache cache = find(f);
+        return cache != null ? cache.get(f) : f.isValid();
+    }
+
+    /**
+     * Returns the validity of {@code f}, the field this cache is registered
+     * to.
+     */
+    boolean get(Field<?> f) {
+        return validate(f) == null;
+    }
+
+    /**
+     * Returns the exception thrown by {@code f.validate()}, or null if
+     * {@code f} is valid. The validators are run only if the result is not
+     * cached.
+     */
+    InvalidValueException validate(Field<?> f) {
+        Object current = f.getValue();
+        if (!known || current != value) {
+            value = current;
+            try {
+                f.validate();
+                error = null;
+            } catch (InvalidValueException e) {
+                error = e;
+            }
+            known = true;
+        }
+        return error;
+    }
+
+    void invalidate() {
+        known = false;
+        value = null;
+        error = null;
+    }
+
+    @Override
+    public void valueChange(ValueChangeEvent event) {
+        invalidate();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(field.get());
+    }
+
+    /**
+     * Registers the cache of a deserialized field.
+     */
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        Field<?> f = (Field<?>) in.readObject();
+        field = new WeakReference<Field<?>>(f);
+        if (f != null) {
+            caches.put(f, this);
+        }
+    }
+}
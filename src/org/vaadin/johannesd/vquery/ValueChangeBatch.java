@@ -0,0 +1,188 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import java.io.Serializable;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.vaadin.data.Property.ValueChangeEvent;
+import com.vaadin.data.Property.ValueChangeListener;
+import com.vaadin.ui.Field;
+import com.vaadin.ui.UI;
+
+/**
+ * Coalesces the value changes of a set of fields into a single batched
+ * notification.
+ * <p>
+ * By default, the fields changed while handling a request are collected and
+ * the listener is notified once, with {@link UI#access(Runnable)}, just
+ * before the response is written or when a background thread releases the
+ * session lock. With a {@link #setDebounce(long) debounce}, the listener is
+ * instead notified once no field has changed for the given time, which suits
+ * updates pushed from background threads. If the UI of a changed field is
+ * not attached to a session, {@link #flush()} must be called explicitly.
+ * <p>
+ * The fields should belong to a single UI. A batch stays registered to the
+ * fields until {@link #remove()} is called.
+ *
+ * @see FieldQuery#addBatchedValueChangeListener(Listener)
+ *
+ * @author Johannes Dahlström
+ *
+ * @param <F>
+ *            The type of the fields.
+ */
+public class ValueChangeBatch<F extends Field<?>> implements Serializable {
+
+    /**
+     * Receives the batched value changes of a set of fields.
+     */
+    public interface Listener<F extends Field<?>> extends Serializable {
+
+        /**
+         * Called with the fields whose values have changed since the previous
+         * notification, in the order they first changed.
+         */
+        void valuesChanged(FieldQuery<F> changed);
+    }
+
+    private final FieldQuery<F> fields;
+    private final Listener<F> listener;
+    private final Set<F> pending = Util.set();
+    private long debounce;
+
+    private transient boolean scheduled;
+    private transient long lastChange;
+    private transient Future<?> timer;
+
+    private final ValueChangeListener valueChangeListener = new ValueChangeListener() {
+        @SuppressWarnings("unchecked")
+        @Override
+        public void valueChange(ValueChangeEvent event) {
+            F f = (F) event.getProperty();
+            pending.add(f);
+            lastChange = System.nanoTime();
+            UI ui = f.getUI();
+            if (!scheduled && ui != null && ui.getSession() != null) {
+                scheduled = true;
+                schedule(ui, debounce);
+            }
+        }
+    };
+
+    ValueChangeBatch(FieldQuery<F> fields, Listener<F> listener) {
+        this.fields = fields;
+        this.listener = listener;
+        for (F f : fields) {
+            f.addValueChangeListener(valueChangeListener);
+        }
+    }
+
+    /**
+     * Sets the time in milliseconds no field must have changed before the
+     * listener is notified, or 0 to notify once per request. The default is
+     * 0.
+     */
+    public ValueChangeBatch<F> setDebounce(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Debounce must be >= 0");
+        }
+        debounce = millis;
+        return this;
+    }
+
+    /**
+     * Returns the debounce time in milliseconds.
+     */
+    public long getDebounce() {
+        return debounce;
+    }
+
+    /**
+     * Returns the number of changed fields the listener has not yet been
+     * notified of.
+     */
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * Notifies the listener of the pending changes now, if any.
+     */
+    public void flush() {
+        scheduled = false;
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        FieldQuery<F> changed = new FieldQuery<F>(pending);
+        pending.clear();
+        listener.valuesChanged(changed);
+    }
+
+    /**
+     * Removes the batch from the fields, discarding any pending changes.
+     */
+    public void remove() {
+        for (F f : fields) {
+            f.removeValueChangeListener(valueChangeListener);
+        }
+        pending.clear();
+        scheduled = false;
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+    }
+
+    /**
+     * Schedules a flush in {@code ui} after {@code delay} milliseconds. A
+     * debounced flush is postponed as long as fields keep changing.
+     */
+    private void schedule(final UI ui, long delay) {
+        final Runnable access = new Runnable() {
+            @Override
+            public void run() {
+                if (!scheduled) {
+                    return;
+                }
+                long quiet = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+                        - lastChange);
+                if (quiet < debounce) {
+                    schedule(ui, debounce - quiet);
+                } else {
+                    flush();
+                }
+            }
+        };
+        if (delay == 0) {
+            ui.access(access);
+        } else {
+            timer = Util.scheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    ui.access(access);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.CompletionException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.ui.Button;
+import com.vaadin.ui.Component;
+import com.vaadin.ui.HasComponents.ComponentAttachEvent;
+import com.vaadin.ui.CssLayout;
+import com.vaadin.ui.UI;
+
+public class AsyncQueryTest {
+
+    private TestSession session;
+    private UI ui;
+    private CssLayout layout;
+
+    @Before
+    public void setUp() {
+        session = new TestSession();
+        ui = session.createUI();
+        layout = new CssLayout();
+        for (int i = 0; i < 1000; i++) {
+            layout.addComponent(new Button());
+        }
+        ui.setContent(layout);
+    }
+
+    @Test
+    public void testChunks() {
+        Query<Component> result = VQuery.async(ui).withChunkSize(100)
+                .execute().join();
+        assertEquals(VQuery.all(ui), result);
+        assertEquals(11, session.lockCount.get());
+        assertNull(HierarchyTracker.find(ui));
+        assertTrue(layout.getListeners(ComponentAttachEvent.class).isEmpty());
+    }
+
+    @Test
+    public void testFilter() {
+        Query<Component> result = VQuery.async(ui)
+                .withFilter(new Predicate<Component>() {
+                    @Override
+                    public boolean apply(Component c) {
+                        assertTrue(session.hasLock());
+                        return c instanceof CssLayout;
+                    }
+                }).execute().join();
+        assertEquals(VQuery.$(layout), result);
+    }
+
+    @Test
+    public void testRestartOnChange() {
+        final Button added = new Button();
+        Query<Component> result = VQuery.async(ui).withChunkSize(100)
+                .withFilter(new Predicate<Component>() {
+                    @Override
+                    public boolean apply(Component c) {
+                        if (added.getParent() == null) {
+                            layout.addComponent(added);
+                        }
+                        return true;
+                    }
+                }).execute().join();
+        assertEquals(VQuery.all(ui), result);
+        assertTrue(result.get().contains(added));
+    }
+
+    @Test
+    public void testPropertyChangesDoNotRestart() {
+        HierarchyTracker.track(ui);
+        Query<Component> result = VQuery.async(ui).withChunkSize(100)
+                .withFilter(new Predicate<Component>() {
+                    @Override
+                    public boolean apply(Component c) {
+                        VQuery.$(c).addStyleName("seen");
+                        return true;
+                    }
+                }).execute().join();
+        assertEquals(VQuery.all(ui), result);
+        assertEquals(11, session.lockCount.get());
+    }
+
+    @Test
+    public void testGiveUpOnContinuousChange() {
+        // Structural changes signaled through a tracker are seen
+        final HierarchyTracker tracker = HierarchyTracker.track(ui);
+        try {
+            VQuery.async(ui).withChunkSize(100)
+                    .withFilter(new Predicate<Component>() {
+                        @Override
+                        public boolean apply(Component c) {
+                            tracker.touch();
+                            return true;
+                        }
+                    }).execute().join();
+            fail();
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof ConcurrentModificationException);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.vaadin.johannesd.vquery.VQuery.$;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.ui.Button;
+import com.vaadin.ui.CssLayout;
+import com.vaadin.ui.UI;
+
+public class DeltaTest {
+
+    private UI ui;
+    private Button[] bs;
+
+    @Before
+    public void setUp() {
+        ui = new UI() {
+            @Override
+            protected void init(VaadinRequest request) {
+            }
+        };
+        bs = new Button[12];
+        for (int i = 0; i < bs.length; i++) {
+            bs[i] = new Button();
+        }
+        ui.setContent(new CssLayout(bs));
+    }
+
+    @Test
+    public void testDelta() {
+        assertDelta();
+    }
+
+    @Test
+    public void testDeltaWithDocumentOrder() {
+        DocumentOrder.enable(ui);
+        assertDelta();
+    }
+
+    @Test
+    public void testDeltaWithDetached() {
+        DocumentOrder.enable(ui);
+        Button detached = new Button();
+        Delta<Button> delta = $(bs[0], bs[1]).delta($(detached, bs[0]));
+        assertEquals($(bs[1]), delta.getAdded());
+        assertEquals($(detached), delta.getRemoved());
+    }
+
+    private void assertDelta() {
+        Query<Button> previous = $(bs[0], bs[2], bs[4], bs[6], bs[8], bs[10]);
+        Query<Button> current = $(bs[9], bs[0], bs[1], bs[4], bs[8]);
+
+        Delta<Button> delta = current.delta(previous);
+        assertEquals($(bs[9], bs[1]), delta.getAdded());
+        assertEquals($(bs[2], bs[6], bs[10]), delta.getRemoved());
+        assertFalse(delta.isEmpty());
+
+        assertTrue(current.delta($(bs[8], bs[4], bs[1], bs[0], bs[9]))
+                .isEmpty());
+        assertEquals(current, current.delta(new Query<Button>()).getAdded());
+    }
+}
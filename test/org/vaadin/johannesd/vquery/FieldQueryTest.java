@@ -19,13 +19,21 @@ package org.vaadin.johannesd.vquery;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import com.vaadin.data.Buffered.SourceException;
 import com.vaadin.data.Property.ValueChangeEvent;
 import com.vaadin.data.Property.ValueChangeListener;
 import com.vaadin.data.Validator;
+import com.vaadin.data.util.ObjectProperty;
 import com.vaadin.ui.Button;
 import com.vaadin.ui.CheckBox;
 import com.vaadin.ui.Component;
@@ -37,6 +45,7 @@ import com.vaadin.ui.Slider;
 import com.vaadin.ui.Table;
 import com.vaadin.ui.TextArea;
 import com.vaadin.ui.TextField;
+import com.vaadin.ui.UI;
 
 public class FieldQueryTest {
 
@@ -173,4 +182,270 @@ public class FieldQueryTest {
 
         assertFalse(fields.isValid(false).exists());
     }
+
+    @Test
+    public void testCommitValidatesAllFirst() {
+        ObjectProperty<String> p1 = new ObjectProperty<String>("a");
+        ObjectProperty<String> p2 = new ObjectProperty<String>("b");
+        TextField f1 = new TextField(p1);
+        TextField f2 = new TextField(p2);
+        FieldQuery<Field<?>> form = new FieldQuery<Field<?>>(f1, f2)
+                .setBuffered(true).setRequired(true);
+
+        f1.setValue("");
+        f2.setValue("");
+        try {
+            form.commit();
+            fail("Expected InvalidFieldsException");
+        } catch (FieldQuery.InvalidFieldsException e) {
+            assertEquals(2, e.getInvalidFields().size());
+            assertEquals(2, e.getCauses().length);
+        }
+        assertEquals("a", p1.getValue());
+        assertEquals("b", p2.getValue());
+
+        f1.setValue("A");
+        f2.setValue("B");
+        form.commit();
+        assertEquals("A", p1.getValue());
+        assertEquals("B", p2.getValue());
+    }
+
+    @Test
+    public void testCommitRollback() {
+        ObjectProperty<String> p1 = new ObjectProperty<String>("a");
+        ObjectProperty<String> p2 = new ObjectProperty<String>("b") {
+            @Override
+            public void setValue(String newValue) {
+                if (!"b".equals(newValue)) {
+                    throw new RuntimeException("Fail");
+                }
+            }
+        };
+        TextField f1 = new TextField(p1);
+        TextField f2 = new TextField(p2);
+        FieldQuery<Field<?>> form = new FieldQuery<Field<?>>(f1, f2)
+                .setBuffered(true);
+
+        f1.setValue("A");
+        f2.setValue("B");
+        try {
+            form.commit();
+            fail("Expected SourceException");
+        } catch (SourceException e) {
+        }
+        assertEquals("a", p1.getValue());
+        assertEquals("A", f1.getValue());
+        assertTrue(f1.isModified());
+    }
+
+    @Test
+    public void testDiscard() {
+        ObjectProperty<String> p1 = new ObjectProperty<String>("a");
+        TextField f1 = new TextField(p1);
+        FieldQuery<Field<?>> form = new FieldQuery<Field<?>>(f1)
+                .setBuffered(true);
+
+        f1.setValue("A");
+        form.discard();
+        assertEquals("a", f1.getValue());
+        assertFalse(f1.isModified());
+    }
+
+    @Test
+    public void testValidationCache() {
+        class CountingValidator implements Validator {
+            int calls = 0;
+
+            @Override
+            public void validate(Object value) throws InvalidValueException {
+                calls++;
+                if (!"TEST".equals(value)) {
+                    throw new InvalidValueException("");
+                }
+            }
+        }
+        CountingValidator v = new CountingValidator();
+
+        FieldQuery<Field<?>> text = fields.is(textField).isField();
+        text.setValidationCached(true).addValidator(v);
+
+        assertFalse(text.isValid(true).exists());
+        assertFalse(text.isValid(true).exists());
+        assertEquals(1, v.calls);
+
+        // The cached failure is reported without validating again
+        try {
+            text.commit();
+            fail("Expected InvalidFieldsException");
+        } catch (FieldQuery.InvalidFieldsException e) {
+            assertSame(textField, e.getInvalidFields().keySet().iterator()
+                    .next());
+        }
+        assertEquals(1, v.calls);
+
+        textField.setValue("TEST");
+        assertTrue(text.isValid(true).exists());
+        assertTrue(text.isValid(true).exists());
+        assertEquals(2, v.calls);
+
+        text.setRequired(true);
+        assertTrue(text.isValid(true).exists());
+        assertEquals(3, v.calls);
+
+        text.removeValidator(v).setValidationCached(false);
+        textField.setValue("");
+        assertFalse(text.isValid(true).exists());
+        assertEquals(3, v.calls);
+    }
+
+    @Test
+    public void testDelegateValueChangeListener() {
+        final int[] changes = new int[1];
+        ValueChangeListener listener = new ValueChangeListener() {
+            @Override
+            public void valueChange(ValueChangeEvent event) {
+                changes[0]++;
+            }
+        };
+        UI ui = new TestSession().createUI();
+        CssLayout form = new CssLayout();
+        CssLayout other = new CssLayout();
+        ui.setContent(new CssLayout(form, other));
+        TextField first = new TextField();
+        TextField ignored = new TextField();
+        ignored.setReadOnly(true);
+        form.addComponent(first);
+        form.addComponent(ignored);
+
+        DelegatedListener<TextField> delegated = VQuery.$(form)
+                .delegateValueChangeListener(TextField.class,
+                        Predicates.isReadOnly(false), listener);
+        assertEquals(1, delegated.getFields().size());
+
+        TextField later = new TextField();
+        CssLayout section = new CssLayout(later);
+        form.addComponent(section);
+        assertEquals(2, delegated.getFields().size());
+        later.setValue("x");
+        assertEquals(1, changes[0]);
+
+        other.addComponent(new TextField());
+        assertEquals(2, delegated.getFields().size());
+
+        form.removeComponent(section);
+        other.addComponent(section);
+        assertEquals(1, delegated.getFields().size());
+        assertTrue(later.getListeners(ValueChangeEvent.class).isEmpty());
+        later.setValue("y");
+        assertEquals(1, changes[0]);
+
+        delegated.remove();
+        assertTrue(first.getListeners(ValueChangeEvent.class).isEmpty());
+        section.removeComponent(later);
+        form.addComponent(later);
+        later.setValue("z");
+        assertEquals(1, changes[0]);
+    }
+
+    @Test
+    public void testDelegateValueChangeListenerRootReattached() {
+        final int[] changes = new int[1];
+        UI ui = new TestSession().createUI();
+        CssLayout content = new CssLayout();
+        ui.setContent(content);
+        CssLayout form = new CssLayout(new TextField());
+        Panel panel = new Panel(form);
+        content.addComponent(panel);
+
+        DelegatedListener<TextField> delegated = VQuery.$(form)
+                .delegateValueChangeListener(TextField.class, null,
+                        new ValueChangeListener() {
+                            @Override
+                            public void valueChange(ValueChangeEvent event) {
+                                changes[0]++;
+                            }
+                        });
+        assertEquals(1, delegated.getFields().size());
+
+        content.removeComponent(panel);
+        assertEquals(0, delegated.getFields().size());
+        content.addComponent(panel);
+        assertEquals(1, delegated.getFields().size());
+
+        delegated.getFields().first().setValue("x");
+        assertEquals(1, changes[0]);
+    }
+
+    @Test
+    public void testGetAndSetValues() {
+        textField.setId("text");
+        checkBox.setId("check");
+        textArea.setId("area");
+        textArea.setValue("old");
+        final FieldQuery<Field<?>> named = fields
+                .filter(new Predicate<Field<?>>() {
+                    @Override
+                    public boolean apply(Field<?> f) {
+                        return f.getId() != null;
+                    }
+                });
+        final List<String> seen = new ArrayList<String>();
+        ValueChangeListener listener = new ValueChangeListener() {
+            @Override
+            public void valueChange(ValueChangeEvent event) {
+                // Every listener sees the complete new state
+                seen.add(event.getProperty().getValue() + " "
+                        + named.getValues());
+            }
+        };
+        fields.addValueChangeListener(listener);
+        fields.setValidationCached(true);
+        List<Object> listeners = new ArrayList<Object>(
+                textField.getListeners(ValueChangeEvent.class));
+
+        java.util.Map<String, Object> values = new HashMap<String, Object>();
+        values.put("text", "foo");
+        values.put("check", true);
+        values.put("area", "old");
+        values.put("missing", "bar");
+        fields.setValues(values);
+
+        assertEquals("foo", textField.getValue());
+        assertTrue(checkBox.getValue());
+        assertEquals(2, seen.size());
+        assertEquals("foo {text=foo, check=true, area=old}", seen.get(0));
+        assertEquals("true {text=foo, check=true, area=old}", seen.get(1));
+        assertEquals(listeners, new ArrayList<Object>(
+                textField.getListeners(ValueChangeEvent.class)));
+
+        values.remove("missing");
+        assertEquals(values, named.getValues());
+    }
+
+    @Test
+    public void testSetValuesListenerRemovedWhileNotifying() {
+        textField.setId("text");
+        checkBox.setId("check");
+        final int[] calls = new int[1];
+        final ValueChangeListener removed = new ValueChangeListener() {
+            @Override
+            public void valueChange(ValueChangeEvent event) {
+                calls[0]++;
+            }
+        };
+        textField.addValueChangeListener(new ValueChangeListener() {
+            @Override
+            public void valueChange(ValueChangeEvent event) {
+                checkBox.removeValueChangeListener(removed);
+            }
+        });
+        checkBox.addValueChangeListener(removed);
+
+        java.util.Map<String, Object> values = new HashMap<String, Object>();
+        values.put("text", "foo");
+        values.put("check", true);
+        fields.setValues(values);
+        assertEquals(0, calls[0]);
+    }
 }
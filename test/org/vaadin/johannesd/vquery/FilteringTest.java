@@ -23,9 +23,13 @@ import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.function.Function;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -35,8 +39,10 @@ import com.vaadin.ui.AbstractTextField;
 import com.vaadin.ui.Button;
 import com.vaadin.ui.CheckBox;
 import com.vaadin.ui.Component;
+import com.vaadin.ui.Field;
 import com.vaadin.ui.Label;
 import com.vaadin.ui.Panel;
+import com.vaadin.ui.Slider;
 import com.vaadin.ui.TextArea;
 import com.vaadin.ui.TextField;
 import com.vaadin.ui.VerticalLayout;
@@ -167,4 +173,192 @@ public class FilteringTest {
         assertTrue(leaves.is(cs[4]).exists());
         assertTrue(leaves.is(cs[5]).exists());
     }
+
+    @Test
+    public void testCombinators() {
+        Predicate<Component> field = new Predicate<Component>() {
+            @Override
+            public boolean apply(Component c) {
+                return c instanceof com.vaadin.ui.Field;
+            }
+        };
+        Predicate<Component> button = Predicates.is(Button.class);
+
+        assertEquals(query.isField().size(), query.filter(field).size());
+        assertEquals(4, query.filter(field.or(button)).size());
+        assertEquals(2, query.filter(field.not().and(button.not())).size());
+        assertEquals(1, query.filter(
+                Predicates.and(field, Predicates.is(TextArea.class))).size());
+        assertEquals(0, query.filter(field.and(button)).size());
+    }
+
+    @Test
+    public void testCheapTermsFirst() {
+        final int[] calls = new int[1];
+        Predicate<Component> expensive = Predicates.withCost(
+                new Predicate<Component>() {
+                    @Override
+                    public boolean apply(Component c) {
+                        calls[0]++;
+                        return true;
+                    }
+                }, Predicates.EXPENSIVE);
+
+        Query<Button> buttons = manyButtons(1000, 10);
+        assertEquals(10, buttons.filter(expensive.and(Predicates.id("x")))
+                .size());
+        assertTrue(calls[0] + " calls", calls[0] < 100);
+
+        // Sampling never evaluates a term after the conjunction is decided
+        calls[0] = 0;
+        assertEquals(10, buttons.filter(Predicates.id("x").and(expensive))
+                .size());
+        assertEquals(10, calls[0]);
+    }
+
+    @Test
+    public void testTypeGuardFirst() {
+        Predicate<Component> emptyText = Predicates.withCost(
+                new Predicate<Component>() {
+                    @Override
+                    public boolean apply(Component c) {
+                        return ((TextField) c).getValue().isEmpty();
+                    }
+                }, 0);
+        Query<Component> all = query.with(manyButtons(100, 10));
+        assertSame(cs[1],
+                all.filter(Predicates.is(TextField.class).and(emptyText))
+                        .one());
+    }
+
+    @Test
+    public void testSelectiveTermsFirst() {
+        final int[] calls = new int[1];
+        Predicate<Component> usuallyTrue = new Predicate<Component>() {
+            @Override
+            public boolean apply(Component c) {
+                calls[0]++;
+                return true;
+            }
+        };
+        Predicate<Component> rarelyTrue = new Predicate<Component>() {
+            @Override
+            public boolean apply(Component c) {
+                return "x".equals(c.getId());
+            }
+        };
+
+        Query<Button> buttons = manyButtons(1000, 10);
+        assertEquals(10, buttons.filter(usuallyTrue.and(rarelyTrue)).size());
+        assertTrue(calls[0] + " calls", calls[0] < 200);
+    }
+
+    @Test
+    public void testHas() {
+        VerticalLayout layout = (VerticalLayout) cs[3];
+        Panel panel = (Panel) cs[2];
+        panel.setContent(new VerticalLayout(new TextField()));
+
+        assertSame(layout, query.has(Button.class).one());
+        assertSame(panel, query.has(TextField.class).one());
+        assertEquals(0, query.has(Label.class).size());
+        assertEquals(2, query.has(Component.class).size());
+    }
+
+    @Test
+    public void testHasVisitsOnce() {
+        List<Component> chain = new ArrayList<Component>();
+        VerticalLayout parent = new VerticalLayout();
+        chain.add(parent);
+        for (int i = 0; i < 100; i++) {
+            VerticalLayout child = new VerticalLayout(new Label());
+            parent.addComponent(child);
+            chain.add(child);
+            parent = child;
+        }
+        TextField bad = new TextField();
+        bad.setValue("bad");
+        parent.addComponent(bad);
+
+        final int[] calls = new int[1];
+        Query<Component> has = VQuery.select(chain).has(
+                new Predicate<Component>() {
+                    @Override
+                    public boolean apply(Component c) {
+                        calls[0]++;
+                        return c instanceof TextField
+                                && "bad".equals(((TextField) c).getValue());
+                    }
+                });
+        assertEquals(101, has.size());
+        assertTrue(calls[0] + " calls", calls[0] <= 2 * 101 + 1);
+    }
+
+    private static Query<Button> manyButtons(int count, int withId) {
+        Set<Button> buttons = new LinkedHashSet<Button>();
+        for (int i = 0; i < count; i++) {
+            Button b = new Button();
+            if (i % (count / withId) == 0) {
+                b.setId("x");
+            }
+            buttons.add(b);
+        }
+        return VQuery.select(buttons);
+    }
+
+    @Test
+    public void testGroupBy() {
+        java.util.Map<Boolean, Query<Component>> groups = query
+                .groupBy(new Function<Component, Boolean>() {
+                    @Override
+                    public Boolean apply(Component c) {
+                        return c instanceof AbstractTextField;
+                    }
+                });
+        assertEquals(Arrays.asList(false, true),
+                new ArrayList<Boolean>(groups.keySet()));
+        assertArrayEquals(new Object[] { cs[0], cs[2], cs[3], cs[5] }, groups
+                .get(false).get().toArray());
+        assertArrayEquals(new Object[] { cs[1], cs[4] }, groups.get(true)
+                .get().toArray());
+
+        FieldQuery<Field<?>> fields = query.isField();
+        java.util.Map<Class<?>, FieldQuery<Field<?>>> byClass = fields
+                .groupBy(new Function<Field<?>, Class<?>>() {
+                    @Override
+                    public Class<?> apply(Field<?> f) {
+                        return f.getClass();
+                    }
+                });
+        assertEquals(3, byClass.size());
+        assertSame(cs[4], byClass.get(TextArea.class).one());
+    }
+
+    @Test
+    public void testPartition() {
+        java.util.Map<Boolean, Query<Component>> parts = query
+                .partition(Predicates.is(AbstractTextField.class));
+        assertArrayEquals(new Object[] { cs[1], cs[4] }, parts.get(true)
+                .get().toArray());
+        assertEquals(4, parts.get(false).size());
+
+        parts = query.partition(Predicates.is(Slider.class));
+        assertFalse(parts.get(true).exists());
+        assertEquals(6, parts.get(false).size());
+    }
+
+    @Test
+    public void testCountBy() {
+        java.util.Map<String, Integer> counts = query
+                .countBy(new Function<Component, String>() {
+                    @Override
+                    public String apply(Component c) {
+                        return c instanceof Field<?> ? "field" : "other";
+                    }
+                });
+        assertEquals(Arrays.asList("other", "field"), new ArrayList<String>(
+                counts.keySet()));
+        assertEquals(Integer.valueOf(3), counts.get("other"));
+        assertEquals(Integer.valueOf(3), counts.get("field"));
+    }
 }
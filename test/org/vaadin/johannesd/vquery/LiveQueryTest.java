@@ -0,0 +1,132 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.vaadin.johannesd.vquery.VQuery.$;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.johannesd.vquery.LiveQuery.ChangeEvent;
+import org.vaadin.johannesd.vquery.LiveQuery.ChangeListener;
+
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.ui.Button;
+import com.vaadin.ui.CssLayout;
+import com.vaadin.ui.Field;
+import com.vaadin.ui.TextField;
+import com.vaadin.ui.UI;
+
+public class LiveQueryTest {
+
+    @SuppressWarnings("rawtypes")
+    private class TestListener implements ChangeListener<Field> {
+        List<ChangeEvent<Field>> events = new ArrayList<ChangeEvent<Field>>();
+
+        @Override
+        public void queryChanged(ChangeEvent<Field> event) {
+            events.add(event);
+        }
+    }
+
+    private UI ui;
+    private CssLayout layout;
+    private TextField dirty;
+
+    @SuppressWarnings("rawtypes")
+    private LiveQuery<Field> live;
+    private TestListener listener;
+
+    @SuppressWarnings("rawtypes")
+    @Before
+    public void setUp() {
+        ui = new UI() {
+            @Override
+            protected void init(VaadinRequest request) {
+            }
+        };
+        layout = new CssLayout(new Button(), dirty = new TextField(),
+                new TextField());
+        dirty.addStyleName("dirty-check");
+        ui.setContent(layout);
+
+        live = new LiveQuery<Field>(ui, Field.class,
+                Predicates.hasStyleName("dirty-check"));
+        listener = new TestListener();
+        live.addChangeListener(listener);
+    }
+
+    @Test
+    public void testInitial() {
+        assertSame(dirty, live.get().one());
+    }
+
+    @Test
+    public void testAttachDetach() {
+        TextField f1 = new TextField();
+        TextField f2 = new TextField();
+        f1.addStyleName("dirty-check");
+        f2.addStyleName("dirty-check");
+        CssLayout nested = new CssLayout(f1, f2, new TextField());
+
+        layout.addComponent(nested);
+        assertEquals(3, live.size());
+        assertEquals(1, listener.events.size());
+        assertEquals(2, listener.events.get(0).getAdded().size());
+        assertTrue(listener.events.get(0).getRemoved().isEmpty());
+
+        $(nested).remove();
+        assertEquals(1, live.size());
+        assertEquals(2, listener.events.size());
+        assertEquals(2, listener.events.get(1).getRemoved().size());
+
+        // Non-matching components do not fire events
+        layout.addComponent(new Button());
+        assertEquals(2, listener.events.size());
+    }
+
+    @Test
+    public void testChanges() {
+        TextField other = (TextField) layout.getComponent(2);
+
+        $(other).addStyleName("dirty-check");
+        assertEquals(2, live.size());
+        assertSame(other, listener.events.get(0).getAdded().iterator().next());
+
+        $(dirty).removeStyleName("dirty-check");
+        assertSame(other, live.get().one());
+        assertSame(dirty, listener.events.get(1).getRemoved().iterator()
+                .next());
+
+        live.setReevaluateOnChange(false);
+        $(dirty).addStyleName("dirty-check");
+        assertEquals(1, live.size());
+    }
+
+    @Test
+    public void testStop() {
+        live.stop();
+        layout.removeAllComponents();
+        assertSame(dirty, live.get().one());
+        assertTrue(listener.events.isEmpty());
+    }
+}
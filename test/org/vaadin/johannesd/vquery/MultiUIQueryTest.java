@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.Button;
+import com.vaadin.ui.Component;
+import com.vaadin.ui.CssLayout;
+import com.vaadin.ui.UI;
+
+public class MultiUIQueryTest {
+
+    private TestSession s1;
+    private TestSession s2;
+
+    @Before
+    public void setUp() {
+        s1 = new TestSession();
+        s2 = new TestSession();
+        addButtons(s1.createUI(), 1);
+        addButtons(s1.createUI(), 2);
+        addButtons(s2.createUI(), 3);
+    }
+
+    @Test
+    public void testMap() {
+        List<Integer> counts = VQuery.inSessions(
+                Arrays.<VaadinSession> asList(s1, s2)).map(
+                new Function<Query<Component>, Integer>() {
+                    @Override
+                    public Integer apply(Query<Component> q) {
+                        assertTrue(s1.hasLock() || s2.hasLock());
+                        assertTrue(q.get().contains(UI.getCurrent()));
+                        return q.is(Button.class).size();
+                    }
+                });
+        assertEquals(Arrays.asList(1, 2, 3), counts);
+        assertFalse(s1.hasLock() || s2.hasLock());
+    }
+
+    @Test
+    public void testMapUIs() {
+        List<Integer> counts = VQuery.inSessions(
+                Arrays.<VaadinSession> asList(s1, s2)).mapUIs(
+                new Function<UI, Integer>() {
+                    @Override
+                    public Integer apply(UI ui) {
+                        assertTrue(ui.getSession().hasLock());
+                        return ((CssLayout) ui.getContent())
+                                .getComponentCount();
+                    }
+                });
+        assertEquals(Arrays.asList(1, 2, 3), counts);
+    }
+
+    @Test
+    public void testCount() {
+        int count = VQuery.inSessions(Arrays.<VaadinSession> asList(s1, s2))
+                .count(new Function<Query<Component>, Query<Button>>() {
+                    @Override
+                    public Query<Button> apply(Query<Component> q) {
+                        return q.is(Button.class);
+                    }
+                });
+        assertEquals(6, count);
+    }
+
+    @Test
+    public void testForEach() {
+        VQuery.inSession(s1).forEach(new Consumer<Query<Component>>() {
+            @Override
+            public void accept(Query<Component> q) {
+                q.is(Button.class).setEnabled(false);
+            }
+        });
+        for (UI ui : s1.getUIs()) {
+            assertEquals(0, VQuery.all(ui).is(Button.class).isEnabled(true)
+                    .size());
+        }
+        assertEquals(3, VQuery.all(s2.getUIs().iterator().next()).is(Button.class)
+                .isEnabled(true).size());
+    }
+
+    @Test
+    public void testBlockingWhileLockedFails() throws Exception {
+        final List<Integer> result = new ArrayList<Integer>();
+        s1.accessSynchronously(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    VQuery.inSession(s2).map(
+                            new Function<Query<Component>, Integer>() {
+                                @Override
+                                public Integer apply(Query<Component> q) {
+                                    return q.size();
+                                }
+                            });
+                    fail();
+                } catch (IllegalStateException expected) {
+                }
+                result.addAll(VQuery.inSession(s2)
+                        .mapAsync(new Function<Query<Component>, Integer>() {
+                            @Override
+                            public Integer apply(Query<Component> q) {
+                                return q.size();
+                            }
+                        }).join());
+            }
+        });
+        assertEquals(Arrays.asList(5), result);
+    }
+
+    private static void addButtons(UI ui, int buttons) {
+        CssLayout layout = new CssLayout();
+        for (int i = 0; i < buttons; i++) {
+            layout.addComponent(new Button());
+        }
+        ui.setContent(layout);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.vaadin.johannesd.vquery.VQuery.$;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.ui.Button;
+import com.vaadin.ui.CssLayout;
+import com.vaadin.ui.TextField;
+import com.vaadin.ui.UI;
+
+public class MutationBatchTest {
+
+    private TestSession session;
+    private UI ui;
+    private Button b1;
+    private Button b2;
+    private TextField tf;
+
+    @Before
+    public void setUp() {
+        session = new TestSession();
+        ui = session.createUI();
+        b1 = new Button();
+        b2 = new Button();
+        tf = new TextField();
+        CssLayout layout = new CssLayout(b1, b2, tf);
+        ui.setContent(layout);
+    }
+
+    @Test
+    public void testDeferredUntilResponse() {
+        MutationBatch batch = MutationBatch.enable(ui);
+        $(b1, b2).addStyleName("foo").setEnabled(false);
+        VQuery.$F(tf).setRequired(true);
+
+        assertEquals(3, batch.size());
+        assertEquals("", b1.getStyleName());
+        assertTrue(b1.isEnabled());
+        assertFalse(tf.isRequired());
+
+        session.runPendingAccessTasks();
+        assertEquals(0, batch.size());
+        assertEquals("foo", b1.getStyleName());
+        assertEquals("foo", b2.getStyleName());
+        assertFalse(b2.isEnabled());
+        assertTrue(tf.isRequired());
+    }
+
+    @Test
+    public void testCoalesced() {
+        MutationBatch batch = MutationBatch.enable(ui);
+        HierarchyTracker tracker = HierarchyTracker.find(ui);
+        b1.addStyleName("bar");
+        long version = tracker.getVersion();
+
+        $(b1, b2).addStyleName("foo").setVisible(false);
+        $(b1).removeStyleName("foo").setVisible(true);
+        $(b2).setStyleName("baz").addStyleName("foo");
+        assertEquals(version, tracker.getVersion());
+
+        batch.flush();
+        assertEquals("bar", b1.getStyleName());
+        assertTrue(b1.isVisible());
+        assertEquals("baz foo", b2.getStyleName());
+        assertFalse(b2.isVisible());
+        assertEquals(version + 1, tracker.getVersion());
+    }
+
+    @Test
+    public void testNoOpsSkipped() {
+        HierarchyTracker tracker = HierarchyTracker.track(ui);
+        b1.addStyleName("foo");
+        b2.setEnabled(false);
+        long version = tracker.getVersion();
+
+        $(b1).addStyleName("foo").setEnabled(true).setStyleName("foo");
+        $(b2).removeStyleName("foo").setEnabled(false);
+        assertEquals(version, tracker.getVersion());
+
+        $(b1, b2).setEnabled(true);
+        assertEquals(version + 1, tracker.getVersion());
+
+        // Blank style names are ignored, like by the component itself
+        MutationBatch batch = MutationBatch.enable(ui);
+        version = tracker.getVersion();
+        $(b1, b2).addStyleName("").removeStyleName(" ");
+        assertEquals(0, batch.size());
+        batch.flush();
+        assertEquals(version, tracker.getVersion());
+    }
+
+    @Test
+    public void testDisableFlushes() {
+        MutationBatch.enable(ui);
+        $(b1).setEnabled(false);
+        assertTrue(b1.isEnabled());
+
+        MutationBatch.disable(ui);
+        assertNull(MutationBatch.get(ui));
+        assertFalse(b1.isEnabled());
+
+        $(b1).setEnabled(true);
+        assertTrue(b1.isEnabled());
+    }
+}
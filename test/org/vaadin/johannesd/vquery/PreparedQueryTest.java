@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.johannesd.vquery.PreparedQuery.Param;
+
+import com.vaadin.ui.Button;
+import com.vaadin.ui.CssLayout;
+import com.vaadin.ui.TextField;
+import com.vaadin.ui.UI;
+
+public class PreparedQueryTest {
+
+    private static final Param STYLE = PreparedQuery.param("style");
+    private static final Param ENABLED = PreparedQuery.param("enabled");
+
+    private static final PreparedQuery<TextField> FIELDS = PreparedQuery
+            .all().is(TextField.class).hasStyleName(STYLE);
+
+    private UI ui;
+    private TextField a;
+    private TextField b;
+    private TextField c;
+
+    @Before
+    public void setUp() {
+        ui = new TestSession().createUI();
+        CssLayout layout = new CssLayout(a = new TextField(),
+                b = new TextField(), c = new TextField(), new Button());
+        a.addStyleName("amount");
+        b.addStyleName("amount");
+        b.setEnabled(false);
+        c.addStyleName("name");
+        layout.getComponent(3).addStyleName("amount");
+        ui.setContent(layout);
+    }
+
+    @Test
+    public void testExecute() {
+        assertEquals(Arrays.asList(a, b),
+                asList(FIELDS.execute(ui, "amount")));
+        assertEquals(Arrays.asList(c), asList(FIELDS.execute(ui, "name")));
+        assertEquals(VQuery.all(ui).is(TextField.class).hasStyleName("amount")
+                .get(), FIELDS.execute(ui, "amount").get());
+    }
+
+    @Test
+    public void testDerivedTemplate() {
+        PreparedQuery<TextField> enabled = FIELDS.isEnabled(ENABLED);
+        assertEquals(Arrays.asList(STYLE, ENABLED), enabled.getParams());
+        assertEquals(Arrays.asList(b),
+                asList(enabled.execute(ui, "amount", false)));
+
+        java.util.Map<String, Object> args = new HashMap<String, Object>();
+        args.put("style", "amount");
+        args.put("enabled", true);
+        assertEquals(Arrays.asList(a), asList(enabled.execute(ui, args)));
+
+        assertEquals(Arrays.asList(a), asList(PreparedQuery.all()
+                .descendants().children().is(TextField.class)
+                .isEnabled(true).hasStyleName("amount").execute(ui)));
+    }
+
+    @Test
+    public void testTypedFilterAfterIs() {
+        PreparedQuery<TextField> empty = PreparedQuery.all()
+                .is(TextField.class).filter(new Predicate<TextField>() {
+                    @Override
+                    public boolean apply(TextField f) {
+                        return f.getValue().isEmpty();
+                    }
+
+                    @Override
+                    public int cost() {
+                        return 0;
+                    }
+                });
+        for (int i = 0; i < 2 * Predicates.SAMPLE_INTERVAL; i++) {
+            assertEquals(Arrays.asList(a, b, c), asList(empty.execute(ui)));
+        }
+    }
+
+    @Test
+    public void testUnboundParam() {
+        try {
+            FIELDS.execute(ui);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            FIELDS.execute(ui, Collections.<String, Object> emptyMap());
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testArgumentTypes() {
+        try {
+            FIELDS.execute(ui, 42);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            FIELDS.isEnabled(ENABLED).execute(ui, "amount", "true");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            FIELDS.isEnabled(ENABLED).execute(ui, "amount", null);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testExecuteWithQueryCache() {
+        QueryCache.enable(ui);
+        assertEquals(Arrays.asList(a, b),
+                asList(FIELDS.execute(ui, "amount")));
+        assertEquals(Arrays.asList(a, b),
+                asList(FIELDS.execute(ui, "amount")));
+        assertEquals(Arrays.asList(b),
+                asList(FIELDS.isEnabled(false).execute(ui, "amount")));
+    }
+
+    private static List<Object> asList(Iterable<?> q) {
+        List<Object> list = new ArrayList<Object>();
+        for (Object o : q) {
+            list.add(o);
+        }
+        return list;
+    }
+}
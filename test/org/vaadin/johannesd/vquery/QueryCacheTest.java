@@ -0,0 +1,151 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.vaadin.johannesd.vquery.VQuery.$;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.ui.Button;
+import com.vaadin.ui.Component;
+import com.vaadin.ui.CssLayout;
+import com.vaadin.ui.HasComponents;
+import com.vaadin.ui.TextField;
+import com.vaadin.ui.UI;
+
+public class QueryCacheTest {
+
+    private UI ui;
+    private CssLayout layout;
+    private TextField amount;
+
+    @Before
+    public void setUp() {
+        ui = new UI() {
+            @Override
+            protected void init(VaadinRequest request) {
+            }
+        };
+        layout = new CssLayout(new Button(), amount = new TextField(),
+                new CssLayout(new TextField()));
+        ui.setContent(layout);
+        UI.setCurrent(ui);
+        QueryCache.enable(ui, 4);
+    }
+
+    @After
+    public void tearDown() {
+        UI.setCurrent(null);
+    }
+
+    @Test
+    public void testEnableDisable() {
+        QueryCache cache = QueryCache.enable(ui);
+        assertSame(cache, QueryCache.get(ui));
+        QueryCache.disable(ui);
+        assertNull(QueryCache.get(ui));
+    }
+
+    @Test
+    public void testResultsAreReused() {
+        $().is(TextField.class).hasStyleName("amount");
+        assertEquals(3, QueryCache.get(ui).size());
+
+        // Not done through vQuery, so not seen
+        amount.addStyleName("amount");
+        assertFalse($().is(TextField.class).hasStyleName("amount").exists());
+    }
+
+    @Test
+    public void testMutatorsInvalidate() {
+        $(amount).addStyleName("amount");
+        assertSame(amount, $().is(TextField.class).hasStyleName("amount")
+                .one());
+
+        $(amount).setVisible(false);
+        assertEquals(1, $().is(TextField.class).isVisible(true).size());
+    }
+
+    @Test
+    public void testHierarchyChangesInvalidate() {
+        assertEquals(2, $().is(TextField.class).size());
+
+        CssLayout nested = (CssLayout) layout.getComponent(2);
+        nested.addComponent(new TextField());
+        assertEquals(3, $().is(TextField.class).size());
+
+        $(amount).remove();
+        assertEquals(2, $().is(TextField.class).size());
+
+        // Detached layouts are no longer tracked
+        long version = HierarchyTracker.find(ui).getVersion();
+        $(nested).remove();
+        nested.addComponent(new Button());
+        assertEquals(version + 1, HierarchyTracker.find(ui).getVersion());
+    }
+
+    @Test
+    public void testStaleQueriesAreNotMemoized() {
+        Query<Component> all = $();
+        layout.addComponent(new TextField());
+        assertEquals(2, all.is(TextField.class).size());
+        assertEquals(3, $().is(TextField.class).size());
+    }
+
+    @Test
+    public void testCustomPredicatesAreNotMemoized() {
+        $().filter(new Predicate<Component>() {
+            @Override
+            public boolean apply(Component c) {
+                return true;
+            }
+        });
+        assertEquals(1, QueryCache.get(ui).size());
+    }
+
+    @Test
+    public void testOrderedResultsAreMemoized() {
+        DocumentOrder.enable(ui);
+        CssLayout nested = (CssLayout) layout.getComponent(2);
+        Query<HasComponents> ancestors = $().is(TextField.class)
+                .ancestors();
+        assertEquals(Arrays.asList(ui, layout, nested),
+                new ArrayList<HasComponents>(ancestors.get()));
+
+        int size = QueryCache.get(ui).size();
+        ancestors.children();
+        assertEquals(size + 1, QueryCache.get(ui).size());
+    }
+
+    @Test
+    public void testBounded() {
+        $().children().children().children().children().children();
+        assertEquals(4, QueryCache.get(ui).size());
+        assertTrue($().exists());
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.vaadin.johannesd.vquery.VQuery.$;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.data.Property.ValueChangeEvent;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.ui.Button;
+import com.vaadin.ui.Component;
+import com.vaadin.ui.CssLayout;
+import com.vaadin.ui.TextField;
+import com.vaadin.ui.UI;
+
+public class SerializationTest {
+
+    private static class TestUI extends UI {
+        @Override
+        protected void init(VaadinRequest request) {
+        }
+    }
+
+    private UI ui;
+
+    @Before
+    public void setUp() {
+        ui = new TestUI();
+        CssLayout layout = new CssLayout();
+        for (int i = 0; i < 1000; i++) {
+            Button b = new Button();
+            if (i % 2 == 0) {
+                b.addStyleName("even");
+            }
+            layout.addComponent(b);
+        }
+        ui.setContent(layout);
+        UI.setCurrent(ui);
+    }
+
+    @After
+    public void tearDown() {
+        UI.setCurrent(null);
+    }
+
+    @Test
+    public void testReferenceForm() throws Exception {
+        Query<Button> even = $().is(Button.class).hasStyleName("even");
+
+        List<?> copy = roundTrip(Arrays.asList(ui, even));
+        UI uiCopy = (UI) copy.get(0);
+        @SuppressWarnings("unchecked")
+        Query<Button> evenCopy = (Query<Button>) copy.get(1);
+
+        assertEquals(500, evenCopy.size());
+        Iterator<Component> expected = ((CssLayout) uiCopy.getContent())
+                .iterator();
+        for (Button b : evenCopy) {
+            assertSame(expected.next(), b);
+            expected.next();
+        }
+    }
+
+    @Test
+    public void testPlanForm() throws Exception {
+        QueryCache.enable(ui);
+        Query<Button> even = $().is(Button.class).hasStyleName("even");
+
+        List<?> copy = roundTrip(Arrays.asList(ui, even));
+        UI uiCopy = (UI) copy.get(0);
+        @SuppressWarnings("unchecked")
+        Query<Button> evenCopy = (Query<Button>) copy.get(1);
+
+        assertEquals(500, evenCopy.size());
+        assertSame(uiCopy, evenCopy.first().getUI());
+        assertTrue(evenCopy.hasStyleName("even").size() == 500);
+    }
+
+    @Test
+    public void testPlanFormAfterCacheDisabled() throws Exception {
+        QueryCache.enable(ui);
+        Query<Button> even = $().is(Button.class).hasStyleName("even");
+
+        List<?> copy = roundTrip(Arrays.asList(ui, even));
+        UI uiCopy = (UI) copy.get(0);
+        @SuppressWarnings("unchecked")
+        Query<Button> evenCopy = (Query<Button>) copy.get(1);
+        QueryCache.disable(uiCopy);
+        assertEquals(500, evenCopy.size());
+
+        copy = roundTrip(Arrays.asList(uiCopy, evenCopy));
+        @SuppressWarnings("unchecked")
+        Query<Button> evenCopy2 = (Query<Button>) copy.get(1);
+        assertEquals(500, evenCopy2.size());
+        assertSame(copy.get(0), evenCopy2.first().getUI());
+    }
+
+    @Test
+    public void testValidityCache() throws Exception {
+        TextField field = new TextField();
+        $(field).isField().setValidationCached(true);
+
+        TextField copy = (TextField) roundTrip(Arrays.asList(field)).get(0);
+        ValidityCache cache = ValidityCache.find(copy);
+        assertNotNull(cache);
+        assertNotSame(ValidityCache.find(field), cache);
+        assertTrue(copy.getListeners(ValueChangeEvent.class).contains(cache));
+    }
+
+    @Test
+    public void testSize() throws Exception {
+        Query<Button> even = $().is(Button.class).hasStyleName("even");
+        int base = serialize(Arrays.asList(ui)).length;
+
+        int legacy = serialize(
+                Arrays.asList(ui, Collections
+                        .unmodifiableSet(new LinkedHashSet<Button>(even.get()))))
+                .length
+                - base;
+        int compact = serialize(Arrays.asList(ui, even)).length - base;
+        assertTrue(compact + " >= " + legacy, compact < legacy);
+
+        QueryCache.enable(ui);
+        base = serialize(Arrays.asList(ui)).length;
+        even = $().is(Button.class).hasStyleName("even");
+        int plan = serialize(Arrays.asList(ui, even)).length - base;
+        assertTrue(plan + " >= " + compact, plan < compact / 4);
+    }
+
+    private static byte[] serialize(Object o) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(new ArrayList<Object>((List<?>) o));
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static List<?> roundTrip(List<?> o) throws Exception {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+                serialize(o)));
+        return (List<?>) in.readObject();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.vaadin.johannesd.vquery.VQuery.$;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.vaadin.ui.Button;
+import com.vaadin.ui.Component;
+
+public class SmallQueryTest {
+
+    private static final int ROUNDS = 100000;
+
+    @Test
+    public void testSmallSets() {
+        Button[] bs = new Button[10];
+        for (int i = 0; i < bs.length; i++) {
+            bs[i] = new Button();
+        }
+
+        assertEquals(0, new Query<Button>().size());
+        assertEquals(new Query<Button>(), $(bs).filter(
+                new Predicate<Component>() {
+                    @Override
+                    public boolean apply(Component c) {
+                        return false;
+                    }
+                }));
+
+        Query<Button> one = $(bs[0], bs[0]);
+        assertEquals(1, one.size());
+        assertSame(bs[0], one.one());
+        assertTrue(one.is(bs[0]).exists());
+        assertFalse(one.is(bs[1]).exists());
+
+        Query<Button> few = $(bs[3], bs[1], bs[3], bs[2]);
+        assertEquals(Arrays.asList(bs[3], bs[1], bs[2]),
+                Arrays.asList(few.get().toArray()));
+        assertTrue(few.is(bs[2]).exists());
+        assertFalse(few.is(bs[0]).exists());
+        assertEquals($(bs[1], bs[2], bs[3]), few);
+
+        Query<Button> many = $(bs);
+        assertEquals(10, many.size());
+        assertEquals(many, $(bs).with(one));
+    }
+
+    /**
+     * Compares the bytes allocated per query against a copy into an
+     * unmodifiable LinkedHashSet, the former representation of every query.
+     */
+    @Test
+    public void testAllocation() {
+        Button b = new Button();
+        List<Button> single = Collections.singletonList(b);
+        List<Button> four = Arrays.asList(b, new Button(), new Button(),
+                new Button());
+
+        long legacySingle = allocated(new Runnable() {
+            @Override
+            public void run() {
+                Collections.unmodifiableSet(new LinkedHashSet<Button>(single));
+            }
+        });
+        long compactSingle = allocated(new Runnable() {
+            @Override
+            public void run() {
+                new Query<Button>(single);
+            }
+        });
+        long legacyFour = allocated(new Runnable() {
+            @Override
+            public void run() {
+                Collections.unmodifiableSet(new LinkedHashSet<Button>(four));
+            }
+        });
+        long compactFour = allocated(new Runnable() {
+            @Override
+            public void run() {
+                new Query<Button>(four);
+            }
+        });
+
+        assertTrue(compactSingle + " * 2 >= " + legacySingle,
+                compactSingle * 2 < legacySingle);
+        assertTrue(compactFour + " * 2 >= " + legacyFour,
+                compactFour * 2 < legacyFour);
+    }
+
+    private static long allocated(Runnable r) {
+        java.lang.management.ThreadMXBean bean = ManagementFactory
+                .getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long id = Thread.currentThread().getId();
+        for (int i = 0; i < ROUNDS; i++) {
+            r.run();
+        }
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < ROUNDS; i++) {
+            r.run();
+        }
+        return (threads.getThreadAllocatedBytes(id) - before) / ROUNDS;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.UI;
+
+/**
+ * A session that can be locked without a service, for testing code that
+ * accesses UIs from background threads.
+ */
+class TestSession extends VaadinSession {
+
+    final AtomicInteger lockCount = new AtomicInteger();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<UI> uis = new ArrayList<UI>();
+    private final List<FutureTask<Void>> accessQueue = Collections
+            .synchronizedList(new ArrayList<FutureTask<Void>>());
+
+    TestSession() {
+        super(null);
+    }
+
+    /**
+     * Returns a new empty UI belonging to this session.
+     */
+    UI createUI() {
+        UI ui = new UI() {
+            @Override
+            protected void init(VaadinRequest request) {
+            }
+
+            @Override
+            public VaadinSession getSession() {
+                return TestSession.this;
+            }
+        };
+        uis.add(ui);
+        return ui;
+    }
+
+    @Override
+    public Lock getLockInstance() {
+        return lock;
+    }
+
+    @Override
+    public void lock() {
+        lockCount.incrementAndGet();
+        lock.lock();
+    }
+
+    @Override
+    public void unlock() {
+        lock.unlock();
+    }
+
+    /**
+     * Queues {@code runnable} to be run by {@link #runPendingAccessTasks()},
+     * as the service would do before writing a response.
+     */
+    @Override
+    public Future<Void> access(Runnable runnable) {
+        FutureTask<Void> task = new FutureTask<Void>(runnable, null);
+        accessQueue.add(task);
+        return task;
+    }
+
+    void runPendingAccessTasks() {
+        lock();
+        try {
+            while (!accessQueue.isEmpty()) {
+                accessQueue.remove(0).run();
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    @Override
+    public Collection<UI> getUIs() {
+        return uis;
+    }
+}
@@ -19,9 +19,17 @@ package org.vaadin.johannesd.vquery;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.vaadin.johannesd.vquery.VQuery.$;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -134,4 +142,223 @@ public class TraversingTest {
             assertSame(p, c);
         }
     }
+
+    @Test
+    public void testStream() {
+        Query<Component> descendants = $ui.descendants();
+        List<Component> streamed = descendants.stream().collect(
+                Collectors.<Component> toList());
+        assertEquals(new ArrayList<Component>(descendants.get()), streamed);
+
+        Set<Component> parallel = descendants.parallelStream().collect(
+                Collectors.<Component> toSet());
+        assertEquals(descendants.get(), parallel);
+    }
+
+    @Test
+    public void testDescendantStream() {
+        List<Component> expected = new ArrayList<Component>($ui
+                .descendants().get());
+
+        assertEquals(expected,
+                $ui.descendantStream().collect(Collectors.<Component> toList()));
+        assertEquals(expected, $ui.parallelDescendantStream().collect(
+                Collectors.<Component> toList()));
+
+        // Overlapping roots are traversed once
+        Query<Component> overlapping = $ui.descendants().with($ui);
+        assertEquals(expected, overlapping.descendantStream().collect(
+                Collectors.<Component> toList()));
+    }
+
+    @Test
+    public void testDescendantSpliteratorSize() {
+        CssLayout content = (CssLayout) ui.getContent();
+        Panel panel = (Panel) ((CssLayout) content.getComponent(0))
+                .getComponent(1);
+
+        Spliterator<Component> all = new SubtreeSpliterator(
+                Collections.<Component> singleton(ui));
+        assertFalse(all.hasCharacteristics(Spliterator.SIZED));
+        assertEquals(Long.MAX_VALUE, all.estimateSize());
+
+        // Splitting halves the estimate, and the empty second layout is left
+        Spliterator<Component> prefix = all.trySplit();
+        assertEquals(Long.MAX_VALUE / 2, prefix.estimateSize());
+        assertFalse(prefix.hasCharacteristics(Spliterator.SIZED));
+        assertTrue(all.hasCharacteristics(Spliterator.SIZED));
+        assertEquals(1, all.getExactSizeIfKnown());
+
+        // Leaves only
+        Spliterator<Component> leaves = new SubtreeSpliterator(
+                Collections.<Component> singleton(panel));
+        assertEquals(1, leaves.getExactSizeIfKnown());
+    }
+
+    @Test
+    public void testSortByDocumentOrder() {
+        CssLayout content = (CssLayout) ui.getContent();
+        CssLayout first = (CssLayout) content.getComponent(0);
+        Component second = content.getComponent(1);
+        Component button = first.getComponent(0);
+        Panel panel = (Panel) first.getComponent(1);
+        Component image = panel.getContent();
+
+        assertEquals(asList(button, image, second),
+                asList($(second, image, button).sortByDocumentOrder()));
+
+        DocumentOrder order = DocumentOrder.enable(ui);
+        assertEquals(0, order.indexOf(ui));
+        assertEquals(5, order.indexOf(image));
+        assertEquals(-1, order.indexOf(new Button()));
+        assertEquals(asList(button, image, second),
+                asList($(second, image, button).sortByDocumentOrder()));
+
+        assertEquals(asList(first, panel), asList($(image, button).parent()));
+        assertEquals(asList(ui, content, first, panel),
+                asList($(image, second).ancestors()));
+        assertEquals(asList(first, button, panel, second),
+                asList($(first, content).children()));
+
+        content.addComponent(new Button(), 0);
+        assertEquals(6, order.indexOf(image));
+
+        // Property changes do not invalidate the snapshot
+        HierarchyTracker tracker = HierarchyTracker.find(ui);
+        long version = tracker.getStructureVersion();
+        $(image).addStyleName("changed");
+        assertEquals(version, tracker.getStructureVersion());
+    }
+
+    @Test
+    public void testClosest() {
+        CssLayout content = (CssLayout) ui.getContent();
+        CssLayout first = (CssLayout) content.getComponent(0);
+        Component button = first.getComponent(0);
+        Panel panel = (Panel) first.getComponent(1);
+        Component image = panel.getContent();
+
+        assertSame(panel, $(image).closest(Panel.class).one());
+        assertEquals(0, $(button, panel).closest(Panel.class).size());
+        assertEquals(asList((Object) first),
+                asList($(button, image).closest(CssLayout.class)));
+        assertEquals(asList(content, first),
+                asList($(first, image).closest(CssLayout.class)));
+        assertSame(ui, $(image).closest(UI.class).one());
+    }
+
+    @Test
+    public void testClosestClimbsOnce() {
+        CssLayout root = new CssLayout();
+        CssLayout parent = root;
+        for (int i = 0; i < 10; i++) {
+            CssLayout child = new CssLayout();
+            parent.addComponent(child);
+            parent = child;
+        }
+        for (int i = 0; i < 100; i++) {
+            parent.addComponent(new Button());
+        }
+
+        final int[] calls = new int[1];
+        Query<HasComponents> closest = $(parent).children().closest(
+                new Predicate<HasComponents>() {
+                    @Override
+                    public boolean apply(HasComponents c) {
+                        calls[0]++;
+                        return c == root;
+                    }
+                });
+        assertSame(root, closest.one());
+        assertEquals(11, calls[0]);
+    }
+
+    @Test
+    public void testSiblings() {
+        Button[] bs = new Button[5];
+        for (int i = 0; i < bs.length; i++) {
+            bs[i] = new Button();
+        }
+        CssLayout layout = new CssLayout(bs);
+        Image orphan = new Image();
+
+        assertEquals(asList(bs[0], bs[1], bs[3], bs[4]),
+                asList($(bs[2]).siblings()));
+        assertEquals(asList((Object[]) bs),
+                asList($(bs[3], bs[1], orphan).siblings()));
+        assertEquals(asList(bs[2], bs[4]), asList($(bs[1], bs[3]).next()));
+        assertEquals(0, $(bs[4], orphan).next().size());
+        assertEquals(asList(bs[0], bs[2]), asList($(bs[3], bs[1]).prev()));
+        assertEquals(asList(bs[2], bs[3], bs[4]),
+                asList($(bs[3], bs[1]).nextAll()));
+        assertEquals(asList(bs[0], bs[1], bs[2]),
+                asList($(bs[3], bs[1]).prevAll()));
+        assertEquals(asList(bs[0], bs[1], bs[2], bs[3], bs[4]),
+                asList($(layout).children().siblings()));
+    }
+
+    @Test
+    public void testDescendantsWhere() {
+        CssLayout content = (CssLayout) ui.getContent();
+        CssLayout first = (CssLayout) content.getComponent(0);
+        Component button = first.getComponent(0);
+        Panel panel = (Panel) first.getComponent(1);
+        Component second = content.getComponent(1);
+
+        panel.setVisible(false);
+        assertEquals(asList(content, first, button, second),
+                asList($ui.visibleDescendants()));
+
+        final List<Component> visited = new ArrayList<Component>();
+        Query<Component> layouts = $ui
+                .descendantsWhere(new Predicate<Component>() {
+                    @Override
+                    public boolean apply(Component c) {
+                        visited.add(c);
+                        return c instanceof CssLayout;
+                    }
+                });
+        assertEquals(asList(content, first, second), asList(layouts));
+        assertEquals(asList(content, first, button, panel, second),
+                asList(visited));
+    }
+
+    @Test
+    public void testEffectiveState() {
+        CssLayout content = (CssLayout) ui.getContent();
+        CssLayout first = (CssLayout) content.getComponent(0);
+        Component button = first.getComponent(0);
+        Panel panel = (Panel) first.getComponent(1);
+        Component image = panel.getContent();
+        Component second = content.getComponent(1);
+
+        Query<Component> all = $ui.descendants();
+        assertEquals(all, all.isEffectivelyVisible(true));
+
+        panel.setVisible(false);
+        first.setEnabled(false);
+        assertEquals(asList(panel, image),
+                asList(all.isEffectivelyVisible(false)));
+        assertEquals(asList(content, first, button, second),
+                asList(all.isEffectivelyVisible(true)));
+        assertEquals(asList(first, button, panel, image),
+                asList(all.isEffectivelyEnabled(false)));
+        assertEquals(asList(image), asList($(image).isVisible(true)));
+    }
+
+    private static List<Object> asList(Iterable<?> cs) {
+        List<Object> list = new ArrayList<Object>();
+        for (Object c : cs) {
+            list.add(c);
+        }
+        return list;
+    }
+
+    private static List<Object> asList(Object... cs) {
+        List<Object> list = new ArrayList<Object>();
+        for (Object c : cs) {
+            list.add(c);
+        }
+        return list;
+    }
 }
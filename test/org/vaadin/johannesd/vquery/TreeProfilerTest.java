@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.Button;
+import com.vaadin.ui.CssLayout;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.UI;
+
+public class TreeProfilerTest {
+
+    @Test
+    public void testProfile() {
+        TestSession session = new TestSession();
+        UI ui = session.createUI();
+        CssLayout outer = new CssLayout();
+        CssLayout inner = new CssLayout();
+        outer.addComponent(new Button());
+        outer.addComponent(inner);
+        inner.addComponent(new Label());
+        inner.addComponent(new Button());
+        inner.addComponent(new Button());
+        ui.setContent(outer);
+
+        TreeStatistics stats = TreeProfiler.profile(ui);
+        assertEquals(7, stats.getComponentCount());
+        assertEquals(3, stats.getMaxDepth());
+        assertEquals(Integer.valueOf(3),
+                stats.getClassHistogram().get(Button.class.getName()));
+        assertEquals(Integer.valueOf(2),
+                stats.getClassHistogram().get(CssLayout.class.getName()));
+        // The UI has one child, the outer layout two and the inner three
+        assertEquals(Integer.valueOf(1), stats.getFanOut().get(1));
+        assertEquals(Integer.valueOf(1), stats.getFanOut().get(2));
+        assertEquals(Integer.valueOf(1), stats.getFanOut().get(3));
+        assertTrue(stats.getEstimatedSize() > 7 * 16);
+        assertEquals(0, stats.getEstimatedSize() % 8);
+    }
+
+    @Test
+    public void testSample() throws Exception {
+        TestSession s1 = new TestSession();
+        TestSession s2 = new TestSession();
+        s1.createUI().setContent(new Button());
+        s1.createUI().setContent(new Label());
+        s2.createUI().setContent(new CssLayout());
+        List<VaadinSession> sessions = Arrays.<VaadinSession> asList(s1, s2);
+
+        assertEquals(3, TreeProfiler.sample(sessions, 1, new Random()).size());
+        assertEquals(0, TreeProfiler.sample(sessions, 0, new Random()).size());
+
+        List<TreeStatistics> stats = TreeProfiler.sample(Arrays
+                .<VaadinSession> asList(s1), 1, new Random());
+        StringBuilder out = new StringBuilder();
+        TreeProfiler.export(stats, out);
+        String[] lines = out.toString().split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].contains("\"components\":2"));
+        assertTrue(lines[0].contains("\"fanOut\":{\"1\":1}"));
+        assertTrue(lines[0].contains("\"" + Button.class.getName() + "\":1"));
+    }
+
+    @Test
+    public void testExportEscapesStrings() throws Exception {
+        TreeStatistics stats = new TreeStatistics("My\"UI\\\n", 0);
+        stats.add("a\"b", 0, 16);
+        String json = stats.toString();
+        assertTrue(json,
+                json.startsWith("{\"ui\":\"My\\\"UI\\\\\\u000a\","));
+        assertTrue(json, json.contains("\"classes\":{\"a\\\"b\":1}"));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.ui.CssLayout;
+import com.vaadin.ui.TextField;
+import com.vaadin.ui.UI;
+
+public class ValueChangeBatchTest {
+
+    private TestSession session;
+    private TextField a;
+    private TextField b;
+    private FieldQuery<TextField> fields;
+    private List<FieldQuery<TextField>> notifications;
+    private ValueChangeBatch.Listener<TextField> listener;
+
+    @Before
+    public void setUp() {
+        session = new TestSession();
+        UI ui = session.createUI();
+        ui.setContent(new CssLayout(a = new TextField(), b = new TextField(),
+                new TextField()));
+        fields = VQuery.all(ui).isField(TextField.class);
+        notifications = new ArrayList<FieldQuery<TextField>>();
+        listener = new ValueChangeBatch.Listener<TextField>() {
+            @Override
+            public void valuesChanged(FieldQuery<TextField> changed) {
+                notifications.add(changed);
+            }
+        };
+    }
+
+    @Test
+    public void testCoalescedPerRequest() {
+        ValueChangeBatch<TextField> batch = fields
+                .addBatchedValueChangeListener(listener);
+        b.setValue("1");
+        a.setValue("2");
+        b.setValue("3");
+        assertEquals(2, batch.size());
+        assertEquals(0, notifications.size());
+
+        session.runPendingAccessTasks();
+        assertEquals(1, notifications.size());
+        assertEquals(2, notifications.get(0).size());
+        assertSame(b, notifications.get(0).first());
+        assertSame(a, notifications.get(0).last());
+
+        a.setValue("4");
+        session.runPendingAccessTasks();
+        assertEquals(2, notifications.size());
+        assertSame(a, notifications.get(1).one());
+
+        batch.remove();
+        a.setValue("5");
+        session.runPendingAccessTasks();
+        assertEquals(2, notifications.size());
+    }
+
+    @Test
+    public void testDebounce() throws Exception {
+        fields.addBatchedValueChangeListener(listener).setDebounce(50);
+        session.lock();
+        try {
+            a.setValue("1");
+            b.setValue("2");
+        } finally {
+            session.unlock();
+        }
+        session.runPendingAccessTasks();
+        assertEquals(0, notifications.size());
+
+        Thread.sleep(300);
+        session.runPendingAccessTasks();
+        assertEquals(1, notifications.size());
+        assertEquals(2, notifications.get(0).size());
+    }
+}
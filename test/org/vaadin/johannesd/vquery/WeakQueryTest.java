@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Johannes Dahlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.vaadin.johannesd.vquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.vaadin.johannesd.vquery.VQuery.$;
+
+import java.lang.ref.WeakReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.ui.Button;
+import com.vaadin.ui.Component;
+import com.vaadin.ui.CssLayout;
+import com.vaadin.ui.UI;
+
+public class WeakQueryTest {
+
+    private UI ui;
+    private CssLayout layout;
+
+    @Before
+    public void setUp() {
+        ui = new UI() {
+            @Override
+            protected void init(VaadinRequest request) {
+            }
+        };
+        layout = new CssLayout();
+        ui.setContent(layout);
+    }
+
+    @Test
+    public void testWeak() {
+        Button b1 = new Button();
+        Button b2 = new Button();
+        layout.addComponents(b1, b2);
+
+        Query<Component> strong = $(layout).children();
+        Query<Component> weak = strong.weak();
+        assertTrue(weak.isWeak());
+        assertFalse(strong.isWeak());
+        assertEquals(strong, weak);
+        assertFalse(weak.is(Button.class).isWeak());
+    }
+
+    @Test
+    public void testRemovedSubtreeIsCollectible() {
+        WeakReference<Component> subtreeRef = addSubtree(10000);
+        Query<Component> weak = $(layout).descendants().weak();
+        assertEquals(10001, weak.size());
+
+        layout.removeAllComponents();
+        gc(subtreeRef);
+
+        assertNull(subtreeRef.get());
+        assertEquals(0, weak.size());
+    }
+
+    @Test
+    public void testStrongQueryRetainsSubtree() {
+        WeakReference<Component> subtreeRef = addSubtree(100);
+        Query<Component> strong = $(layout).descendants();
+
+        layout.removeAllComponents();
+        gc(subtreeRef);
+
+        assertNotNull(subtreeRef.get());
+        assertEquals(101, strong.size());
+    }
+
+    private WeakReference<Component> addSubtree(int size) {
+        CssLayout subtree = new CssLayout();
+        for (int i = 0; i < size; i++) {
+            subtree.addComponent(new Button());
+        }
+        layout.addComponent(subtree);
+        return new WeakReference<Component>(subtree);
+    }
+
+    private static void gc(WeakReference<?> ref) {
+        for (int i = 0; i < 20 && ref.get() != null; i++) {
+            System.gc();
+            byte[][] garbage = new byte[64][];
+            for (int j = 0; j < garbage.length; j++) {
+                garbage[j] = new byte[1 << 16];
+            }
+        }
+    }
+}